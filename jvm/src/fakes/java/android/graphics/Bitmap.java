@@ -0,0 +1,145 @@
+package android.graphics;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Stand-in for Android's Bitmap: ARGB pixels in a Java array. {@link #compress} encodes JPEG and
+ * PNG with ImageIO, so encoding costs roughly what it does on a device; WebP isn't supported.
+ */
+public final class Bitmap {
+    public enum CompressFormat {
+        JPEG, PNG, WEBP
+    }
+
+    public enum Config {
+        ALPHA_8(1), RGB_565(2), ARGB_4444(2), ARGB_8888(4);
+
+        final int bytesPerPixel;
+
+        Config(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final Config config;
+    private int[] pixels;
+
+    private Bitmap(int width, int height, Config config, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.pixels = pixels;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config, new int[width * height]);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public int getRowBytes() {
+        return width * config.bytesPerPixel;
+    }
+
+    public int getByteCount() {
+        return getRowBytes() * height;
+    }
+
+    public void setPixel(int x, int y, int color) {
+        checkRecycled();
+        pixels[y * width + x] = color;
+    }
+
+    public int getPixel(int x, int y) {
+        checkRecycled();
+        return pixels[y * width + x];
+    }
+
+    public Bitmap copy(Config config, boolean isMutable) {
+        checkRecycled();
+        return new Bitmap(width, height, config, pixels.clone());
+    }
+
+    public boolean compress(CompressFormat format, int quality, OutputStream stream) {
+        checkRecycled();
+        if (format == CompressFormat.WEBP)
+            return false;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        try {
+            if (format == CompressFormat.PNG)
+                return ImageIO.write(image, "png", stream);
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+            if (!writers.hasNext())
+                return false;
+            ImageWriter writer = writers.next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+            ImageOutputStream out = ImageIO.createImageOutputStream(stream);
+            try {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void recycle() {
+        pixels = null;
+    }
+
+    public boolean isRecycled() {
+        return pixels == null;
+    }
+
+    private void checkRecycled() {
+        if (pixels == null)
+            throw new IllegalStateException("Can't use a recycled bitmap");
+    }
+}
@@ -0,0 +1,57 @@
+package android.os;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Stand-in for Android's Looper: the main looper runs its messages on a single daemon thread. */
+public final class Looper {
+    private static final Looper main = new Looper("main");
+
+    private final ExecutorService executor;
+    private volatile Thread thread;
+
+    private Looper(final String name) {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                thread = t;
+                return t;
+            }
+        });
+    }
+
+    public static Looper getMainLooper() {
+        return main;
+    }
+
+    /** @return The looper's thread, {@code null} until the first message was posted */
+    public Thread getThread() {
+        return thread;
+    }
+
+    void post(Runnable r) {
+        executor.execute(r);
+    }
+}
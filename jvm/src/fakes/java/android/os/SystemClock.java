@@ -0,0 +1,42 @@
+package android.os;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for Android's SystemClock, based on {@link System#nanoTime()}. Tests of timeouts move
+ * it forward with {@link #advance(long)} instead of sleeping.
+ */
+public final class SystemClock {
+    private static final AtomicLong offset = new AtomicLong();
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000 + offset.get();
+    }
+
+    /** Moves the clock forward by the given time. */
+    public static void advance(long millis) {
+        offset.addAndGet(millis);
+    }
+}
@@ -0,0 +1,67 @@
+package de.robv.android.xposed;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Stand-in for XSharedPreferences, reading a properties file instead of a shared preferences XML.
+ * A missing file reads as empty preferences, like on a device.
+ */
+public final class XSharedPreferences {
+    private final File file;
+    private Properties values = new Properties();
+
+    public XSharedPreferences(File file) {
+        this.file = file;
+        reload();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void reload() {
+        Properties loaded = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                loaded.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // No preferences yet
+        }
+        values = loaded;
+    }
+
+    public String getString(String key, String defValue) {
+        return values.getProperty(key, defValue);
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        String value = values.getProperty(key);
+        return value != null ? Boolean.parseBoolean(value) : defValue;
+    }
+}
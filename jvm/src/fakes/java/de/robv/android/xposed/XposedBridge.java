@@ -0,0 +1,50 @@
+package de.robv.android.xposed;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+/**
+ * Stand-in for the XposedBridge, only logging and calling methods are supported, as nothing is
+ * hooked here. Messages are dropped unless the
+ * system property {@code xposed.log} is set, so benchmarks don't measure the console.
+ */
+public final class XposedBridge {
+    private static final boolean ENABLED = Boolean.getBoolean("xposed.log");
+
+    private XposedBridge() {
+    }
+
+    public static void log(String text) {
+        if (ENABLED)
+            System.err.println(text);
+    }
+
+    public static void log(Throwable t) {
+        if (ENABLED)
+            t.printStackTrace();
+    }
+
+    /** Nothing is ever hooked here, so this simply calls the method. */
+    public static Object invokeOriginalMethod(Member method, Object thisObject, Object[] args) throws Exception {
+        return ((Method) method).invoke(thisObject, args);
+    }
+}
@@ -0,0 +1,31 @@
+package de.robv.android.xposed.callbacks;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.pm.ApplicationInfo;
+
+/** Stand-in for XC_LoadPackage, only its parameter class is used. */
+public abstract class XC_LoadPackage {
+    public static class LoadPackageParam {
+        public String packageName;
+        public ClassLoader classLoader;
+        public ApplicationInfo appInfo;
+    }
+}
@@ -0,0 +1,96 @@
+package com.snapchat.android.model;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+
+/** Stand-in for Snapchat's ReceivedSnap, with the methods Keepchat calls and hooks. */
+public class ReceivedSnap extends Snap {
+    private final String sender;
+    private final String id;
+    private final byte[] decryptedBytes;
+    private final Bitmap image;
+    private final String videoUri;
+    private boolean loaded;
+    private boolean viewed;
+
+    /** An image snap */
+    public ReceivedSnap(String sender, long timestamp, String id, byte[] decryptedBytes, Bitmap image) {
+        this(sender, timestamp, id, decryptedBytes, image, null);
+    }
+
+    /** A video snap */
+    public ReceivedSnap(String sender, long timestamp, String id, String videoUri) {
+        this(sender, timestamp, id, null, null, videoUri);
+    }
+
+    private ReceivedSnap(String sender, long timestamp, String id, byte[] decryptedBytes, Bitmap image, String videoUri) {
+        super(timestamp);
+        this.sender = sender;
+        this.id = id;
+        this.decryptedBytes = decryptedBytes;
+        this.image = image;
+        this.videoUri = videoUri;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public byte[] getDecryptedBytes() {
+        return decryptedBytes;
+    }
+
+    public Bitmap getImageBitmap() {
+        return image;
+    }
+
+    public String getVideoUri() {
+        return videoUri;
+    }
+
+    public boolean isVideo() {
+        return videoUri != null;
+    }
+
+    public void setIsLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void markViewed() {
+        viewed = true;
+    }
+
+    public boolean isViewed() {
+        return viewed;
+    }
+
+    public boolean wasScreenshotted() {
+        return false;
+    }
+}
@@ -0,0 +1,200 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveExporterTest {
+    private static final long TIMESTAMP = 1391400306789L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private File archive;
+    private final List<File> saved = new ArrayList<File>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.newFolder("keepchat");
+        archive = new File(tmp.getRoot(), ArchiveExporter.ARCHIVE_NAME);
+    }
+
+    @Test
+    public void archiveHoldsTheSnapsAndAManifest() throws Exception {
+        save(3);
+        ArchiveExporter.Result result = new ArchiveExporter(dir, archive).export(all());
+        assertTrue(result.complete);
+        assertFalse(result.resumed);
+        assertEquals(3, result.files);
+        assertEquals(archive.length(), result.bytes);
+
+        Map<String, byte[]> files = untar(AtomicCommitterTest.read(archive));
+        assertEquals(4, files.size());
+        for (File file : saved)
+            assertArrayEquals(AtomicCommitterTest.read(file), files.get("keepchat/" + file.getName()));
+        String[] manifest = new String(files.get("keepchat/" + ArchiveExporter.MANIFEST_NAME), "UTF-8").split("\n");
+        assertEquals(3, manifest.length);
+        // Oldest first
+        assertTrue(manifest[0].startsWith(saved.get(0).getName() + "\talice\t" + TIMESTAMP + "\t"));
+    }
+
+    @Test
+    public void stoppedExportResumesFromTheCheckpoint() throws Exception {
+        save(40);
+        ArchiveExporter.Result stopped = new ArchiveExporter(dir, archive).export(new ArchiveExporter.Listener() {
+            @Override
+            public boolean onProgress(int done, int total, long bytes) {
+                return done < 35;
+            }
+        });
+        assertFalse(stopped.complete);
+        assertEquals(35, stopped.files);
+
+        ArchiveExporter.Result resumed = new ArchiveExporter(dir, archive).export(all());
+        assertTrue(resumed.complete);
+        assertTrue(resumed.resumed);
+        assertEquals(40, resumed.files);
+        assertTrue(resumed.bytes < archive.length());
+        Map<String, byte[]> files = untar(AtomicCommitterTest.read(archive));
+        assertEquals(41, files.size());
+        for (File file : saved)
+            assertArrayEquals(AtomicCommitterTest.read(file), files.get("keepchat/" + file.getName()));
+        assertFalse(new File(archive.getPath() + ".checkpoint").exists());
+    }
+
+    @Test
+    public void removedSnapsAreLeftOut() throws Exception {
+        save(3);
+        assertTrue(saved.get(1).delete());
+        new ArchiveExporter(dir, archive).export(all());
+        Map<String, byte[]> files = untar(AtomicCommitterTest.read(archive));
+        assertFalse(files.containsKey("keepchat/" + saved.get(1).getName()));
+        assertTrue(files.containsKey("keepchat/" + saved.get(2).getName()));
+        String[] manifest = manifest(files);
+        assertEquals(2, manifest.length);
+        assertTrue(manifest[0].startsWith(saved.get(0).getName() + "\t"));
+        assertTrue(manifest[1].startsWith(saved.get(2).getName() + "\t"));
+    }
+
+    @Test
+    public void snapsSkippedBeforeTheCheckpointStayOutOfTheManifest() throws Exception {
+        save(40);
+        assertTrue(saved.get(3).delete());
+        new ArchiveExporter(dir, archive).export(new ArchiveExporter.Listener() {
+            @Override
+            public boolean onProgress(int done, int total, long bytes) {
+                return done < 35;
+            }
+        });
+
+        ArchiveExporter.Result resumed = new ArchiveExporter(dir, archive).export(all());
+        assertTrue(resumed.resumed);
+        Map<String, byte[]> files = untar(AtomicCommitterTest.read(archive));
+        assertFalse(files.containsKey("keepchat/" + saved.get(3).getName()));
+        String[] manifest = manifest(files);
+        assertEquals(39, manifest.length);
+        for (String line : manifest)
+            assertFalse(line.startsWith(saved.get(3).getName() + "\t"));
+    }
+
+    /** Saves the given number of snaps of different sizes, a second apart */
+    private void save(int count) throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        PathPlanner planner = new PathPlanner(dir, PathPlanner.SHARD_NONE);
+        for (int i = 0; i < count; i++) {
+            long timestamp = TIMESTAMP + i * 1000L;
+            SaveIndex.Reservation reservation = index.reserve("alice", timestamp, "image", "s" + i,
+                    planner.plan("alice", timestamp, "jpg"));
+            byte[] content = new byte[100 + i * 300];
+            content[0] = (byte) i;
+            AtomicCommitterTest.write(reservation.file, content);
+            index.add(reservation, SaveIndex.hashFile(reservation.file));
+            index.release(reservation);
+            saved.add(reservation.file);
+        }
+    }
+
+    private static String[] manifest(Map<String, byte[]> files) throws Exception {
+        return new String(files.get("keepchat/" + ArchiveExporter.MANIFEST_NAME), "UTF-8").split("\n");
+    }
+
+    private static ArchiveExporter.Listener all() {
+        return new ArchiveExporter.Listener() {
+            @Override
+            public boolean onProgress(int done, int total, long bytes) {
+                return true;
+            }
+        };
+    }
+
+    /** @return The files in the ustar archive by name, checking the headers and the end of archive */
+    private static Map<String, byte[]> untar(byte[] tar) throws Exception {
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        int pos = 0;
+        while (true) {
+            assertTrue("Archive not terminated", pos + 1024 <= tar.length);
+            if (isZero(tar, pos, 1024)) {
+                assertEquals(pos + 1024, tar.length);
+                return files;
+            }
+            assertEquals("ustar", field(tar, pos + 257, 6));
+            long sum = 0;
+            for (int i = 0; i < 512; i++)
+                sum += i >= 148 && i < 156 ? ' ' : tar[pos + i] & 0xff;
+            assertEquals(sum, Long.parseLong(field(tar, pos + 148, 8).trim(), 8));
+            String prefix = field(tar, pos + 345, 155);
+            String name = (prefix.length() > 0 ? prefix + "/" : "") + field(tar, pos, 100);
+            int size = Integer.parseInt(field(tar, pos + 124, 12), 8);
+            byte[] content = new byte[size];
+            System.arraycopy(tar, pos + 512, content, 0, size);
+            files.put(name, content);
+            pos += 512 + (size + 511) / 512 * 512;
+        }
+    }
+
+    private static String field(byte[] block, int offset, int length) throws Exception {
+        int end = offset;
+        while (end < offset + length && block[end] != 0)
+            end++;
+        return new String(block, offset, end - offset, "UTF-8");
+    }
+
+    private static boolean isZero(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            if (data[i] != 0)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,178 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AtomicCommitterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("keepchat");
+    }
+
+    @Test
+    public void commitMovesTheTempFileIntoPlace() throws Exception {
+        AtomicCommitter committer = new AtomicCommitter(dir);
+        File target = new File(dir, "alice_2014-02-03_04-05-06.jpg");
+        File temp = committer.tempFileFor(target);
+        assertEquals(AtomicCommitter.TMP_DIR_NAME, temp.getParentFile().getName());
+        assertTrue(new File(temp.getParentFile(), ".nomedia").exists());
+
+        byte[] data = "image".getBytes("UTF-8");
+        write(temp, data);
+        committer.commit(temp, target);
+        assertFalse(temp.exists());
+        assertArrayEquals(data, read(target));
+    }
+
+    @Test
+    public void tempFilesForTheSameTargetDiffer() throws Exception {
+        AtomicCommitter committer = new AtomicCommitter(dir);
+        File target = new File(dir, "alice_2014-02-03_04-05-06.jpg");
+        assertFalse(committer.tempFileFor(target).equals(committer.tempFileFor(target)));
+    }
+
+    @Test
+    public void missingTempFileFailsWithoutCreatingTheTarget() throws Exception {
+        AtomicCommitter committer = new AtomicCommitter(dir);
+        File target = new File(dir, "alice_2014-02-03_04-05-06.jpg");
+        File temp = committer.tempFileFor(target);
+        try {
+            committer.commit(temp, target);
+            fail("Committed a file that was never written");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(target.exists());
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void uncheckedFailureFailsTheCommitAndLaterCommitsStillLand() throws Exception {
+        AtomicCommitter committer = new AtomicCommitter(dir);
+        File target = new File(dir, "alice_2014-02-03_04-05-06.jpg");
+        try {
+            // Opening a null file throws a NullPointerException while syncing
+            committer.commit(null, target);
+            fail("Committed without a temp file");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof NullPointerException);
+        }
+        assertFalse(target.exists());
+
+        File temp = committer.tempFileFor(target);
+        write(temp, new byte[]{1});
+        committer.commit(temp, target);
+        assertArrayEquals(new byte[]{1}, read(target));
+    }
+
+    @Test
+    public void recoverOnlyRemovesTempFilesOfEarlierSessions() throws Exception {
+        AtomicCommitter earlier = new AtomicCommitter(dir);
+        File orphan = earlier.tempFileFor(new File(dir, "a.jpg"));
+        write(orphan, new byte[1]);
+        // Sessions are told apart by their start time
+        Thread.sleep(10);
+        AtomicCommitter current = new AtomicCommitter(dir);
+        File inProgress = current.tempFileFor(new File(dir, "b.jpg"));
+        write(inProgress, new byte[1]);
+
+        assertEquals(1, current.recover());
+        assertFalse(orphan.exists());
+        assertTrue(inProgress.exists());
+        assertTrue(new File(inProgress.getParentFile(), ".nomedia").exists());
+        assertEquals(0, current.recover());
+    }
+
+    @Test
+    public void concurrentCommitsAllLand() throws Exception {
+        final AtomicCommitter committer = new AtomicCommitter(dir);
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<File>> targets = new ArrayList<Future<File>>();
+            for (int i = 0; i < 32; i++) {
+                final int n = i;
+                targets.add(workers.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        File target = new File(dir, "snap" + n + ".jpg");
+                        File temp = committer.tempFileFor(target);
+                        write(temp, new byte[]{(byte) n});
+                        committer.commit(temp, target);
+                        return target;
+                    }
+                }));
+            }
+            for (int i = 0; i < targets.size(); i++)
+                assertArrayEquals(new byte[]{(byte) i}, read(targets.get(i).get(10, TimeUnit.SECONDS)));
+        } finally {
+            workers.shutdownNow();
+        }
+        assertEquals(0, committer.recover());
+        // Only the .nomedia file is left
+        assertEquals(1, new File(dir, AtomicCommitter.TMP_DIR_NAME).list().length);
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
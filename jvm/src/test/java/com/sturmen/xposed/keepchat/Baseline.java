@@ -0,0 +1,125 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+import de.robv.android.xposed.XposedBridge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The save code of Keepchat before the save engine, for the benchmarks to compare against. The
+ * Xposed log is discarded here while it is written to a file on the device, so these numbers flatter
+ * the original code.
+ */
+final class Baseline {
+    /** XposedHelpers.callMethod() caches the methods it found by their full name, like this */
+    private static final Map<String, Method> methodCache = new HashMap<String, Method>();
+
+    private final File externalStorage;
+
+    /** @param externalStorage Stands in for Environment.getExternalStorageDirectory() */
+    Baseline(File externalStorage) {
+        this.externalStorage = externalStorage;
+    }
+
+    /** The original constructFileObject(), see the first commit of Keepchat.java */
+    File constructFileObject(Object snapObject, String suffix) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        String root = externalStorage.toString();
+        File myDir = new File(root + "/keepchat");
+        XposedBridge.log("Saving to directory " + myDir.toString());
+        if (myDir.mkdirs())
+            XposedBridge.log("Directory " + myDir.toString() + " was created.");
+        String sender = (String) callMethod(snapObject, "getSender");
+        SimpleDateFormat fnameDateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US);
+        Date timestamp = new Date((Long) callSuperMethod(snapObject, "getTimestamp"));
+        String fname = sender + "_" + (fnameDateFormat.format(timestamp)) + "." + suffix;
+        XposedBridge.log("Saving with filename " + fname);
+        return new File(myDir, fname);
+    }
+
+    /** The original getImageBitmap() hook, which saved the image on Snapchat's thread */
+    String saveImage(Object snapObject, Bitmap myImage) throws Exception {
+        File file = constructFileObject(snapObject, "jpg");
+        if (!file.exists()) {
+            XposedBridge.log("Bitmap loaded.");
+            FileOutputStream out = new FileOutputStream(file);
+            myImage.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            out.flush();
+            out.close();
+            String mediaPath = file.getCanonicalPath();
+            XposedBridge.log("Saved image to " + mediaPath + "!");
+            return mediaPath;
+        }
+        return null;
+    }
+
+    /** The original getVideoUri() hook, which copied the video on Snapchat's thread */
+    String saveVideo(Object snapObject, String videoUri) throws Exception {
+        XposedBridge.log("Video is at " + videoUri);
+        File file = constructFileObject(snapObject, "mp4");
+        copy(new File(videoUri), file);
+        String mediaPath = file.getCanonicalPath();
+        XposedBridge.log("Saved video to " + mediaPath + " !");
+        return mediaPath;
+    }
+
+    /** The original video copy loop */
+    static void copy(File src, File dst) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = new FileOutputStream(dst);
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        out.flush();
+        out.close();
+    }
+
+    private static Object callMethod(Object obj, String methodName) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        Class<?> cls = obj.getClass();
+        String fullName = cls.getName() + '#' + methodName + "()#bestmatch";
+        Method method;
+        synchronized (methodCache) {
+            method = methodCache.get(fullName);
+            if (method == null) {
+                method = cls.getMethod(methodName);
+                methodCache.put(fullName, method);
+            }
+        }
+        return method.invoke(obj);
+    }
+
+    private static Object callSuperMethod(Object obj, String methodName) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        return obj.getClass().getMethod(methodName).invoke(obj);
+    }
+}
@@ -0,0 +1,87 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Files for the benchmarks. They are created under {@code -Dkeepchat.bench.dir}, which defaults to
+ * the temp folder; point it at a real disk when /tmp is a tmpfs, or syncing costs nothing.
+ */
+final class BenchmarkFiles {
+    private BenchmarkFiles() {
+    }
+
+    /** @return A new empty folder */
+    static File newDir(String name) throws IOException {
+        File parent = new File(System.getProperty("keepchat.bench.dir", System.getProperty("java.io.tmpdir")));
+        File dir = new File(parent, "keepchat-" + name + "-" + System.nanoTime());
+        if (!dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        return dir;
+    }
+
+    /** @return A new file of the given size with random content */
+    static File newFile(File dir, String name, long size) throws IOException {
+        File file = new File(dir, name);
+        byte[] buffer = new byte[64 * 1024];
+        Random random = new Random(size);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Removes the saved snaps from the keepchat folder and the index, so the next snaps are new
+     * again and the folder doesn't fill the disk; a retention budget would do the same.
+     */
+    static void clearSaved(SaveIndex index, File keepchat) throws IOException {
+        SaveIndex.Entry entry;
+        while ((entry = index.oldest()) != null) {
+            new File(entry.path).delete();
+            index.remove(entry);
+        }
+        // Saved by the original code, which doesn't know the index
+        File[] saved = keepchat.listFiles();
+        if (saved != null)
+            for (File file : saved)
+                if (file.isFile() && !file.getName().equals(SaveIndex.JOURNAL_NAME))
+                    file.delete();
+    }
+
+    /** Deletes the folder and everything in it. */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
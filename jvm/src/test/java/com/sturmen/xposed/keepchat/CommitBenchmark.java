@@ -0,0 +1,122 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The cost of the crash-safe commit: writing to a temp file, syncing and renaming it with
+ * {@link AtomicCommitter} against writing the target directly like the original code, which neither
+ * synced nor survived a crash mid-write. The concurrent variant shows how much group commit saves
+ * when several saves finish together. Run with {@code -Dkeepchat.bench.dir} on a real disk, on
+ * tmpfs the sync is free.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CommitBenchmark {
+    @State(Scope.Benchmark)
+    public static class Folder {
+        @Param({"100", "1024", "10240"})
+        public int sizeKb;
+
+        File dir;
+        AtomicCommitter committer;
+        byte[] data;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = BenchmarkFiles.newDir("commit");
+            committer = new AtomicCommitter(dir);
+            data = new byte[sizeKb * 1024];
+            new Random(sizeKb).nextBytes(data);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkFiles.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Target {
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp(Folder folder) {
+            file = new File(folder.dir, "snap" + folder.threads.incrementAndGet() + ".jpg");
+        }
+
+        @TearDown(Level.Invocation)
+        public void remove() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public void direct(Folder folder, Target target) throws IOException {
+        write(target.file, folder.data);
+    }
+
+    @Benchmark
+    public void atomic(Folder folder, Target target) throws IOException {
+        File temp = folder.committer.tempFileFor(target.file);
+        write(temp, folder.data);
+        folder.committer.commit(temp, target.file);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void atomicConcurrent(Folder folder, Target target) throws IOException {
+        atomic(folder, target);
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.SystemClock;
+import de.robv.android.xposed.XSharedPreferences;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File prefs;
+    private Config.Watcher watcher;
+    private Config notified;
+
+    @Before
+    public void setUp() throws Exception {
+        prefs = new File(tmp.getRoot(), "prefs.properties");
+        write("pref_imageSaving=2\npref_imageFormat=1\n");
+        watcher = new Config.Watcher(new XSharedPreferences(prefs));
+        watcher.setListener(new Config.Watcher.Listener() {
+            @Override
+            public void onConfigChanged(Config config) {
+                notified = config;
+            }
+        });
+    }
+
+    @Test
+    public void missingPreferencesHaveTheirDefaults() {
+        Config config = watcher.current();
+        assertEquals(Config.SAVE_ASK, config.imageSavingMode);
+        assertEquals(ImageEncoder.MODE_JPEG, config.imageFormat);
+        assertEquals(Config.SAVE_AUTO, config.videoSavingMode);
+        assertEquals(90, config.imageQuality);
+        assertEquals(PathPlanner.SHARD_NONE, config.sharding);
+        assertFalse(config.eagerSave);
+    }
+
+    @Test
+    public void changedPreferencesAreReloaded() throws Exception {
+        Config initial = watcher.current();
+        write("pref_imageSaving=1\npref_eagerSave=true\n");
+        // Not checked again that soon
+        watcher.checkForChanges();
+        assertSame(initial, watcher.current());
+
+        SystemClock.advance(Config.Watcher.CHECK_INTERVAL_MILLIS);
+        watcher.checkForChanges();
+        Config changed = watcher.current();
+        assertEquals(Config.SAVE_AUTO, changed.imageSavingMode);
+        assertTrue(changed.eagerSave);
+        assertSame(changed, notified);
+    }
+
+    @Test
+    public void unchangedFileIsNotReloaded() {
+        Config initial = watcher.current();
+        SystemClock.advance(Config.Watcher.CHECK_INTERVAL_MILLIS);
+        watcher.checkForChanges();
+        assertSame(initial, watcher.current());
+        assertNull(notified);
+    }
+
+    @Test
+    public void brokenPreferencesKeepTheOldOnes() throws Exception {
+        Config initial = watcher.current();
+        write("pref_imageSaving=sometimes\n");
+        SystemClock.advance(Config.Watcher.CHECK_INTERVAL_MILLIS);
+        watcher.checkForChanges();
+        assertSame(initial, watcher.current());
+        assertNull(notified);
+    }
+
+    /** Writes the preferences with a new modification time, file times may only have seconds */
+    private void write(String content) throws Exception {
+        long modified = prefs.exists() ? prefs.lastModified() : 0;
+        AtomicCommitterTest.write(prefs, content.getBytes("UTF-8"));
+        if (modified != 0)
+            prefs.setLastModified(modified + 1000);
+    }
+}
@@ -0,0 +1,102 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The video copy strategies of {@link MediaCopier} against the original 1 KB buffer loop. Hard
+ * links need android.system.Os and aren't available here; like rename, they cost next to nothing
+ * regardless of the size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CopyBenchmark {
+    @Param({"1", "10", "100"})
+    public int sizeMb;
+
+    private File dir;
+    private File src;
+    private File dst;
+    private final MediaCopier channel = new MediaCopier(new MediaCopier.ChannelStrategy());
+    private final MediaCopier stream = new MediaCopier(new MediaCopier.StreamStrategy());
+    private final MediaCopier rename = new MediaCopier(new MediaCopier.RenameStrategy());
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        dir = BenchmarkFiles.newDir("copy");
+        src = BenchmarkFiles.newFile(dir, "video.mp4", sizeMb * 1024L * 1024L);
+        dst = new File(dir, "copy.mp4");
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeCopy() {
+        dst.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void removeAll() {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public void original() throws IOException {
+        Baseline.copy(src, dst);
+    }
+
+    @Benchmark
+    public String transferTo() throws IOException {
+        return channel.copy(src, dst, false);
+    }
+
+    @Benchmark
+    public String stream() throws IOException {
+        return stream.copy(src, dst, false);
+    }
+
+    /** Moving a disposable staged copy into place; the source is moved back outside the measurement */
+    @Benchmark
+    public String rename() throws IOException {
+        String used = rename.copy(src, dst, true);
+        if (!dst.renameTo(src))
+            throw new IOException("Could not restore " + src);
+        return used;
+    }
+}
@@ -0,0 +1,126 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+import com.snapchat.android.model.ReceivedSnap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.sturmen.xposed.keepchat.Config.SAVE_AUTO;
+
+/**
+ * The latency of a whole save, from the getter hook until the path is reported on the main
+ * thread, for images in the original format and videos of several sizes. Each measurement is a
+ * single save of a new snap through {@link SnapSaver}: reserving the file in the index, writing or
+ * copying to a temp file, committing it and recording it. The original code is measured with the
+ * video hook, which did all of it on Snapchat's thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 20)
+@Measurement(iterations = 100)
+public class EndToEndSaveBenchmark {
+    @Param({"100", "1024", "10240"})
+    public int sizeKb;
+
+    private File dir;
+    private File keepchat;
+    private SaveIndex index;
+    private SnapSaver saver;
+    private Baseline baseline;
+    private byte[] raw;
+    /** What Snapchat shows; not used, as the original bytes are saved */
+    private final Bitmap image = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+    private File video;
+    private ReceivedSnap imageSnap;
+    private ReceivedSnap videoSnap;
+    private long timestamp = 1391400306789L;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkFiles.newDir("save");
+        keepchat = new File(dir, "keepchat");
+        keepchat.mkdirs();
+        index = new SaveIndex(keepchat);
+        SnapAccessors accessors = SnapAccessors.resolve(SnapAccessorsTest.loadPackageParam(dir, new File(dir, "snapchat.apk")));
+        saver = new SnapSaver(accessors, new SnapRegistry(), new SaveEngine(2, 64), index,
+                new AtomicCommitter(keepchat), new MediaCopier(new MediaCopier.ChannelStrategy(), new MediaCopier.StreamStrategy()),
+                new PathPlanner(keepchat, PathPlanner.SHARD_NONE), new ImageEncoder(ImageEncoder.MODE_ORIGINAL, 90));
+        baseline = new Baseline(dir);
+        raw = new byte[sizeKb * 1024];
+        new Random(sizeKb).nextBytes(raw);
+        // Saved as JPEG in the original format mode
+        raw[0] = (byte) 0xff;
+        raw[1] = (byte) 0xd8;
+        video = BenchmarkFiles.newFile(dir, "video.mp4", sizeKb * 1024L);
+    }
+
+    /** Every save is of a new snap */
+    @Setup(Level.Iteration)
+    public void newSnaps() {
+        timestamp += 1000;
+        imageSnap = new ReceivedSnap("alice", timestamp, "i" + timestamp, raw, image);
+        videoSnap = new ReceivedSnap("alice", timestamp, "v" + timestamp, video.getPath());
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeSaved() throws IOException {
+        BenchmarkFiles.clearSaved(index, keepchat);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public String image() throws Exception {
+        return SnapSaverTest.await(saver.imageLoaded(imageSnap, image, SAVE_AUTO, false).save);
+    }
+
+    @Benchmark
+    public String video() throws Exception {
+        return SnapSaverTest.await(saver.videoLoaded(videoSnap, video.getPath(), SAVE_AUTO, false).save);
+    }
+
+    @Benchmark
+    public String originalVideo() throws Exception {
+        return baseline.saveVideo(videoSnap, video.getPath());
+    }
+}
@@ -0,0 +1,152 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+import com.snapchat.android.model.ReceivedSnap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.sturmen.xposed.keepchat.Config.SAVE_AUTO;
+
+/**
+ * The time the getImageBitmap() hook holds up Snapchat's thread: the original hook, which encoded
+ * and wrote the image right there, against {@link SnapSaver#imageLoaded}, which captures the snap
+ * and hands it to the save engine. In the original format mode only the decrypted bytes are
+ * captured, the other modes copy the Bitmap for the job.
+ * <p>
+ * Every measurement is a batch of {@link #BATCH} snaps that haven't been seen by the hook before.
+ * They are either new, or replayed: saved in an earlier iteration, like snaps reopened after
+ * Snapchat was restarted. The saves run in the background while the batch is measured, and are
+ * waited for before the next one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 50)
+@Measurement(iterations = 200)
+public class HookBenchmark {
+    /** Snaps per measurement, so each one is well above the timer resolution */
+    private static final int BATCH = 8;
+
+    @Param({"" + ImageEncoder.MODE_ORIGINAL, "" + ImageEncoder.MODE_JPEG})
+    public int mode;
+
+    @Param({"false", "true"})
+    public boolean replay;
+
+    private File dir;
+    private File keepchat;
+    private Baseline baseline;
+    private SaveIndex index;
+    private SnapSaver saver;
+    private Bitmap image;
+    private byte[] jpeg;
+    private final ReceivedSnap[] snaps = new ReceivedSnap[BATCH];
+    private final SnapRegistry.Entry[] entries = new SnapRegistry.Entry[BATCH];
+    private long timestamp = 1391400306789L;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkFiles.newDir("hook");
+        keepchat = new File(dir, "keepchat");
+        keepchat.mkdirs();
+        baseline = new Baseline(dir);
+        SnapAccessors accessors = SnapAccessors.resolve(SnapAccessorsTest.loadPackageParam(dir, new File(dir, "snapchat.apk")));
+        index = new SaveIndex(keepchat);
+        saver = new SnapSaver(accessors, new SnapRegistry(), new SaveEngine(2, 64), index,
+                new AtomicCommitter(keepchat), new MediaCopier(), new PathPlanner(keepchat, PathPlanner.SHARD_NONE),
+                new ImageEncoder(mode, 90));
+        image = newImage();
+        // The decrypted bytes Snapchat decoded the Bitmap from
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        jpeg = out.toByteArray();
+    }
+
+    /** @return A typical snap: a phone screen of pixels, about 100 KB as JPEG */
+    static Bitmap newImage() {
+        Bitmap image = Bitmap.createBitmap(720, 1280, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setPixel(x, y, 0xff000000 | (x * 255 / 720) << 16 | (y * 255 / 1280) << 8 | (x ^ y) & 0xff);
+        return image;
+    }
+
+    /** New snap objects, as Snapchat creates them when it loads its snaps */
+    @Setup(Level.Iteration)
+    public void newSnaps() {
+        if (!replay)
+            timestamp += BATCH * 1000;
+        for (int i = 0; i < BATCH; i++) {
+            long ts = timestamp + i * 1000;
+            snaps[i] = new ReceivedSnap("alice", ts, "s" + ts, jpeg, image);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void finishSaves() throws Exception {
+        for (SnapRegistry.Entry entry : entries)
+            if (entry != null)
+                SnapSaverTest.await(entry.save);
+        Arrays.fill(entries, null);
+        if (!replay)
+            BenchmarkFiles.clearSaved(index, keepchat);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void original(Blackhole blackhole) throws Exception {
+        for (ReceivedSnap snap : snaps)
+            blackhole.consume(baseline.saveImage(snap, image));
+    }
+
+    /** The work of Keepchat's getImageBitmap() hook in Save mode */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void capture() throws Exception {
+        for (int i = 0; i < BATCH; i++)
+            entries[i] = saver.imageLoaded(snaps[i], image, SAVE_AUTO, false);
+    }
+}
@@ -0,0 +1,119 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageEncoderTest {
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 13};
+    private static final byte[] WEBP = {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Bitmap image;
+    private byte[] jpeg;
+
+    @Before
+    public void setUp() {
+        image = Bitmap.createBitmap(32, 24, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        jpeg = out.toByteArray();
+    }
+
+    @Test
+    public void originalModeWritesTheDecryptedBytesAsTheyAre() throws Exception {
+        ImageEncoder encoder = new ImageEncoder(ImageEncoder.MODE_ORIGINAL, 90);
+        assertFalse(encoder.needsBitmap(jpeg));
+        assertEquals("jpg", encoder.getSuffix(jpeg));
+        assertEquals("png", encoder.getSuffix(PNG));
+        assertEquals("webp", encoder.getSuffix(WEBP));
+
+        File file = tmp.newFile();
+        assertEquals(jpeg.length, encoder.encode(null, jpeg, file));
+        assertArrayEquals(jpeg, AtomicCommitterTest.read(file));
+    }
+
+    @Test
+    public void originalModeFallsBackToJpegForUnknownBytes() throws Exception {
+        ImageEncoder encoder = new ImageEncoder(ImageEncoder.MODE_ORIGINAL, 90);
+        byte[][] unknown = {null, {(byte) 0xff, (byte) 0xd8, 0}, new byte[64]};
+        for (byte[] raw : unknown) {
+            assertTrue(encoder.needsBitmap(raw));
+            assertEquals("jpg", encoder.getSuffix(raw));
+        }
+        File file = tmp.newFile();
+        encoder.encode(image, new byte[64], file);
+        byte[] written = AtomicCommitterTest.read(file);
+        assertEquals(0xff, written[0] & 0xff);
+        assertEquals(0xd8, written[1] & 0xff);
+    }
+
+    @Test
+    public void otherModesReencodeTheBitmap() throws Exception {
+        ImageEncoder encoder = new ImageEncoder(ImageEncoder.MODE_PNG, 90);
+        assertTrue(encoder.needsBitmap(jpeg));
+        assertEquals("png", encoder.getSuffix(jpeg));
+        assertEquals("webp", new ImageEncoder(ImageEncoder.MODE_WEBP, 90).getSuffix(jpeg));
+        assertEquals("jpg", new ImageEncoder(ImageEncoder.MODE_JPEG, 90).getSuffix(PNG));
+
+        File file = tmp.newFile();
+        long written = encoder.encode(image, jpeg, file);
+        assertEquals(file.length(), written);
+        byte[] magic = new byte[4];
+        System.arraycopy(AtomicCommitterTest.read(file), 0, magic, 0, magic.length);
+        assertArrayEquals(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, magic);
+    }
+
+    @Test
+    public void sizeIsEstimatedFromEarlierEncodes() throws Exception {
+        assertEquals(jpeg.length, new ImageEncoder(ImageEncoder.MODE_ORIGINAL, 90).estimateSize(image, jpeg));
+        // Nothing has been encoded as WebP, see failedCompressionIsReported()
+        long estimate = new ImageEncoder(ImageEncoder.MODE_WEBP, 90).estimateSize(image, jpeg);
+        assertTrue(estimate > 0 && estimate < image.getByteCount());
+
+        ImageEncoder encoder = new ImageEncoder(ImageEncoder.MODE_PNG, 90);
+        File file = tmp.newFile();
+        encoder.encode(image, null, file);
+        assertTrue(file.length() > 0);
+        estimate = encoder.estimateSize(image, null);
+        assertTrue(estimate > 0 && estimate < image.getByteCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void failedCompressionIsReported() throws Exception {
+        // The stand-in Bitmap can't do WebP, like some older devices
+        new ImageEncoder(ImageEncoder.MODE_WEBP, 90).encode(image, null, tmp.newFile());
+    }
+}
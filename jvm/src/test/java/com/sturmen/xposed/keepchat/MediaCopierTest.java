@@ -0,0 +1,143 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MediaCopierTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File src;
+    private File dst;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        // Larger than the buffers of the stream and channel copies
+        data = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        src = tmp.newFile("video.mp4");
+        write(src, data);
+        dst = new File(tmp.getRoot(), "copy.mp4");
+    }
+
+    @Test
+    public void channelCopyIsIdentical() throws Exception {
+        assertEquals("transferTo", new MediaCopier(new MediaCopier.ChannelStrategy()).copy(src, dst, false));
+        assertArrayEquals(data, read(dst));
+        assertArrayEquals(data, read(src));
+    }
+
+    @Test
+    public void streamCopyIsIdentical() throws Exception {
+        assertEquals("stream", new MediaCopier(new MediaCopier.StreamStrategy()).copy(src, dst, false));
+        assertArrayEquals(data, read(dst));
+        assertArrayEquals(data, read(src));
+    }
+
+    @Test
+    public void sourcesNotOwnedAreNeverMoved() throws Exception {
+        MediaCopier copier = new MediaCopier(new MediaCopier.RenameStrategy(), new MediaCopier.StreamStrategy());
+        assertEquals("stream", copier.copy(src, dst, false));
+        assertTrue(src.exists());
+    }
+
+    @Test
+    public void disposableSourcesAreMoved() throws Exception {
+        MediaCopier copier = new MediaCopier(new MediaCopier.RenameStrategy(), new MediaCopier.StreamStrategy());
+        assertEquals("rename", copier.copy(src, dst, true));
+        assertFalse(src.exists());
+        assertArrayEquals(data, read(dst));
+    }
+
+    @Test
+    public void failedStrategyLeavesNoPartialCopyForTheNext() throws Exception {
+        MediaCopier copier = new MediaCopier(new TruncatingStrategy(), new MediaCopier.StreamStrategy());
+        assertEquals("stream", copier.copy(src, dst, false));
+        assertArrayEquals(data, read(dst));
+    }
+
+    @Test
+    public void partialCopyIsRemovedWhenAllStrategiesFail() throws Exception {
+        MediaCopier copier = new MediaCopier(new TruncatingStrategy());
+        try {
+            copier.copy(src, dst, false);
+            fail("Copy didn't fail");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+        assertFalse(dst.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void noApplicableStrategyFails() throws Exception {
+        new MediaCopier(new MediaCopier.RenameStrategy()).copy(src, dst, false);
+    }
+
+    /** Writes part of the file, then fails like a full disk */
+    private static final class TruncatingStrategy implements CopyStrategy {
+        @Override
+        public String getName() {
+            return "truncating";
+        }
+
+        @Override
+        public boolean copy(File src, File dst, boolean srcDisposable) throws IOException {
+            write(dst, new byte[1024]);
+            throw new IOException("Disk full");
+        }
+    }
+
+    static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.snapchat.android.model.ReceivedSnap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the file name of a snap: the accessors and {@link PathPlanner} against the original
+ * constructFileObject(), which looked up the methods, created a SimpleDateFormat and checked the
+ * folder on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PathPlannerBenchmark {
+    @Param({"" + PathPlanner.SHARD_NONE, "" + PathPlanner.SHARD_SENDER})
+    public int sharding;
+
+    private File dir;
+    private Baseline baseline;
+    private SnapAccessors accessors;
+    private PathPlanner planner;
+    private ReceivedSnap snap;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkFiles.newDir("planner");
+        baseline = new Baseline(dir);
+        accessors = SnapAccessors.resolve(SnapAccessorsTest.loadPackageParam(dir, new File(dir, "snapchat.apk")));
+        planner = new PathPlanner(new File(dir, "keepchat"), sharding);
+        snap = new ReceivedSnap("alice", 1391400306789L, "a", new byte[0], null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public File constructFileObject() throws Exception {
+        return baseline.constructFileObject(snap, "jpg");
+    }
+
+    @Benchmark
+    public File plan() throws Exception {
+        return planner.plan(accessors.getSender(snap), accessors.getTimestamp(snap), "jpg");
+    }
+}
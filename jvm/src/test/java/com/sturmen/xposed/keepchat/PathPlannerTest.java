@@ -0,0 +1,86 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PathPlannerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+    private long timestamp;
+
+    @Before
+    public void setUp() throws IOException {
+        root = tmp.newFolder("keepchat");
+        // File names are in local time, like the original constructFileObject()
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2014, Calendar.FEBRUARY, 3, 4, 5, 6);
+        timestamp = calendar.getTimeInMillis() + 789;
+    }
+
+    @Test
+    public void fileNameHasTheSenderAndTheTime() {
+        File file = new PathPlanner(root, PathPlanner.SHARD_NONE).plan("alice", timestamp, "jpg");
+        assertEquals(new File(root, "alice_2014-02-03_04-05-06.jpg"), file);
+    }
+
+    @Test
+    public void senderShardingSavesToTheSendersFolder() {
+        File file = new PathPlanner(root, PathPlanner.SHARD_SENDER).plan("alice", timestamp, "mp4");
+        assertEquals(new File(new File(root, "alice"), "alice_2014-02-03_04-05-06.mp4"), file);
+        assertTrue(file.getParentFile().isDirectory());
+    }
+
+    @Test
+    public void monthShardingSavesToTheMonthsFolder() {
+        File file = new PathPlanner(root, PathPlanner.SHARD_MONTH).plan("alice", timestamp, "jpg");
+        assertEquals(new File(new File(root, "2014-02"), "alice_2014-02-03_04-05-06.jpg"), file);
+        assertTrue(file.getParentFile().isDirectory());
+    }
+
+    @Test
+    public void senderIsSanitized() {
+        assertEquals("alice", PathPlanner.sanitize("alice"));
+        assertEquals("a.b-c_d", PathPlanner.sanitize("a.b-c_d"));
+        assertEquals("_hidden", PathPlanner.sanitize(".hidden"));
+        assertEquals("_._etc_passwd", PathPlanner.sanitize("../etc/passwd"));
+        assertEquals("unknown", PathPlanner.sanitize(""));
+        assertEquals("unknown", PathPlanner.sanitize(null));
+    }
+
+    @Test
+    public void sanitizedSenderCannotEscapeTheRoot() {
+        File file = new PathPlanner(root, PathPlanner.SHARD_SENDER).plan("..", timestamp, "jpg");
+        assertEquals(new File(new File(root, "_."), "_._2014-02-03_04-05-06.jpg"), file);
+    }
+}
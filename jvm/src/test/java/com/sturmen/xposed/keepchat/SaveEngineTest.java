@@ -0,0 +1,135 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.Looper;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SaveEngineTest {
+    @Test
+    public void resultIsReportedOnTheMainThread() throws Exception {
+        SaveEngine engine = new SaveEngine(1, 4);
+        final BlockingQueue<Thread> saveThread = new ArrayBlockingQueue<Thread>(1);
+        SaveHandle handle = engine.submit(new SaveEngine.Job() {
+            @Override
+            public String save() {
+                saveThread.add(Thread.currentThread());
+                return "/sdcard/keepchat/a.jpg";
+            }
+        });
+        Result result = new Result();
+        handle.whenDone(result);
+        assertEquals("/sdcard/keepchat/a.jpg", result.await());
+        assertSame(Looper.getMainLooper().getThread(), result.thread);
+        assertNotSame(Thread.currentThread(), saveThread.take());
+    }
+
+    @Test
+    public void jobsBeyondTheQueueAreDroppedInsteadOfRunOnTheCaller() throws Exception {
+        SaveEngine engine = new SaveEngine(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SaveEngine.Job blocking = new SaveEngine.Job() {
+            @Override
+            public String save() throws Exception {
+                release.await();
+                return "/sdcard/keepchat/a.jpg";
+            }
+        };
+        final Thread caller = Thread.currentThread();
+        final boolean[] ranOnCaller = new boolean[1];
+        SaveEngine.Job dropped = new SaveEngine.Job() {
+            @Override
+            public String save() {
+                ranOnCaller[0] = Thread.currentThread() == caller;
+                return "/sdcard/keepchat/c.jpg";
+            }
+        };
+        try {
+            // One running, one queued
+            engine.submit(blocking);
+            engine.submit(blocking);
+            Result result = new Result();
+            engine.submit(dropped).whenDone(result);
+            assertNull(result.await());
+            assertEquals(false, ranOnCaller[0]);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void queueDepthFollowsTheQueue() throws Exception {
+        SaveEngine engine = new SaveEngine(1, 4);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SaveEngine.Job blocking = new SaveEngine.Job() {
+            @Override
+            public String save() throws Exception {
+                running.countDown();
+                release.await();
+                return "/sdcard/keepchat/a.jpg";
+            }
+        };
+        Metrics.Gauge queueDepth = Metrics.gauge("engine.queueDepth");
+        Result last = new Result();
+        try {
+            engine.submit(blocking);
+            running.await();
+            engine.submit(blocking);
+            engine.submit(blocking).whenDone(last);
+            assertEquals(2, queueDepth.get());
+        } finally {
+            release.countDown();
+        }
+        last.await();
+        assertEquals(0, queueDepth.get());
+        assertTrue(queueDepth.getMax() >= 2);
+    }
+
+    private static final class Result implements SaveHandle.Callback {
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile String path;
+        volatile Thread thread;
+
+        @Override
+        public void onSaved(String path) {
+            this.path = path;
+            thread = Thread.currentThread();
+            done.countDown();
+        }
+
+        String await() throws InterruptedException {
+            if (!done.await(5, TimeUnit.SECONDS))
+                throw new AssertionError("Save not reported");
+            return path;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SaveIndexTest {
+    /** 2014-02-03 04:05:06.789 in UTC; the tests only compare times formatted in the same zone */
+    private static final long TIMESTAMP = 1391400306789L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private PathPlanner planner;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.newFolder("keepchat");
+        planner = new PathPlanner(dir, PathPlanner.SHARD_NONE);
+        journal = new File(dir, SaveIndex.JOURNAL_NAME);
+    }
+
+    @Test
+    public void snapsFromTheSameSecondGetDifferentFiles() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        File planned = planner.plan("alice", TIMESTAMP, "jpg");
+        SaveIndex.Reservation first = index.reserve("alice", TIMESTAMP, "image", "a", planned);
+        SaveIndex.Reservation second = index.reserve("alice", TIMESTAMP + 100, "image", "b", planned);
+        assertEquals(planned, first.file);
+        assertEquals(withCounter(planned, 2), second.file);
+        save(index, first, "first");
+        // Saved files stay taken after their reservation is gone
+        SaveIndex.Reservation third = index.reserve("alice", TIMESTAMP + 200, "image", "c", planned);
+        assertEquals(withCounter(planned, 3), third.file);
+    }
+
+    @Test
+    public void releasedFileIsFreeAgain() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        File planned = planner.plan("alice", TIMESTAMP, "jpg");
+        SaveIndex.Reservation failed = index.reserve("alice", TIMESTAMP, "image", "a", planned);
+        index.release(failed);
+        SaveIndex.Reservation retry = index.reserve("alice", TIMESTAMP, "image", "a", planned);
+        assertNull(retry.saved);
+        assertEquals(planned, retry.file);
+    }
+
+    @Test
+    public void savedSnapIsFoundBySnapId() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        SaveIndex.Reservation reservation = index.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg"));
+        SaveIndex.Entry entry = save(index, reservation, "image");
+        // Same id, e.g. the same snap reported with another timestamp
+        SaveIndex.Reservation again = index.reserve("alice", TIMESTAMP + 5000, "image", "a", planner.plan("alice", TIMESTAMP + 5000, "jpg"));
+        assertEquals(entry.path, again.saved.path);
+        assertNull(again.file);
+        // A video with the same id is a different snap
+        assertNull(index.reserve("alice", TIMESTAMP, "video", "a", planner.plan("alice", TIMESTAMP, "mp4")).saved);
+    }
+
+    @Test
+    public void savedSnapWithoutIdIsFoundBySenderAndTimestamp() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        File planned = planner.plan("alice", TIMESTAMP, "mp4");
+        save(index, index.reserve("alice", TIMESTAMP, "video", null, planned), "video");
+        assertNotNull(index.reserve("alice", TIMESTAMP, "video", null, planned).saved);
+        assertNull(index.reserve("alice", TIMESTAMP + 1, "video", null, planned).saved);
+    }
+
+    @Test
+    public void savedContentIsFoundByItsHash() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        SaveIndex.Entry entry = save(index, index.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg")), "image");
+        assertTrue(entry.hash != 0);
+        assertEquals(entry.path, index.findContent(entry.hash, entry.size).path);
+        assertNull(index.findContent(entry.hash, entry.size + 1));
+
+        SaveIndex reloaded = new SaveIndex(dir);
+        assertEquals(entry.path, reloaded.findContent(SaveIndex.hashFile(new File(entry.path)), entry.size).path);
+        reloaded.remove(reloaded.oldest());
+        assertNull(reloaded.findContent(entry.hash, entry.size));
+    }
+
+    @Test
+    public void peekOnlyFindsSnapsOnceTheIndexIsLoaded() throws Exception {
+        SaveIndex saving = new SaveIndex(dir);
+        save(saving, saving.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg")), "image");
+        SaveIndex index = new SaveIndex(dir);
+        assertNull(index.peek("alice", TIMESTAMP, "image", "a"));
+        index.preload();
+        assertNotNull(index.peek("alice", TIMESTAMP, "image", "a"));
+        assertNotNull(index.peek("alice", TIMESTAMP, "image", null));
+        assertNull(index.peek("alice", TIMESTAMP, "video", "a"));
+        SaveIndex.Entry video = save(index, index.reserve("alice", TIMESTAMP, "video", "a", planner.plan("alice", TIMESTAMP, "mp4")), "video");
+        assertEquals(video.path, index.peek("alice", TIMESTAMP, "video", "a").path);
+    }
+
+    @Test
+    public void concurrentSaveOfTheSameSnapWaitsForTheFirst() throws Exception {
+        final SaveIndex index = new SaveIndex(dir);
+        final File planned = planner.plan("alice", TIMESTAMP, "jpg");
+        SaveIndex.Reservation first = index.reserve("alice", TIMESTAMP, "image", "a", planned);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Future<SaveIndex.Reservation> second = other.submit(new Callable<SaveIndex.Reservation>() {
+                @Override
+                public SaveIndex.Reservation call() throws Exception {
+                    return index.reserve("alice", TIMESTAMP, "image", "a", planned);
+                }
+            });
+            assertStillWaiting(second);
+            SaveIndex.Entry entry = save(index, first, "image");
+            SaveIndex.Reservation result = second.get(5, TimeUnit.SECONDS);
+            assertEquals(entry.path, result.saved.path);
+        } finally {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedSaveLetsTheWaitingOneTry() throws Exception {
+        final SaveIndex index = new SaveIndex(dir);
+        final File planned = planner.plan("alice", TIMESTAMP, "jpg");
+        SaveIndex.Reservation first = index.reserve("alice", TIMESTAMP, "image", "a", planned);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Future<SaveIndex.Reservation> second = other.submit(new Callable<SaveIndex.Reservation>() {
+                @Override
+                public SaveIndex.Reservation call() throws Exception {
+                    return index.reserve("alice", TIMESTAMP, "image", "a", planned);
+                }
+            });
+            assertStillWaiting(second);
+            index.release(first);
+            SaveIndex.Reservation result = second.get(5, TimeUnit.SECONDS);
+            assertNull(result.saved);
+            assertEquals(planned, result.file);
+        } finally {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void entriesSurviveAReload() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        save(index, index.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg")), "12345");
+        save(index, index.reserve("bob", TIMESTAMP + 1000, "video", null, planner.plan("bob", TIMESTAMP + 1000, "mp4")), "123");
+
+        SaveIndex reloaded = new SaveIndex(dir);
+        List<SaveIndex.Entry> entries = reloaded.entries();
+        assertEquals(2, entries.size());
+        // Newest first
+        assertEquals("bob", entries.get(0).sender);
+        assertEquals("alice", entries.get(1).sender);
+        assertEquals("a", entries.get(1).snapId);
+        assertFalse(entries.get(1).rebuilt);
+        assertEquals(8, reloaded.totalBytes());
+        assertEquals("alice", reloaded.oldest().sender);
+    }
+
+    @Test
+    public void tornLastLineIsCutOff() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        save(index, index.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg")), "image");
+        long intact = journal.length();
+        append(journal, "bob\t" + TIMESTAMP + "\tvid");
+
+        SaveIndex reloaded = new SaveIndex(dir);
+        assertEquals(1, reloaded.size());
+        assertEquals(intact, journal.length());
+        // The next append starts on a clean line
+        save(reloaded, reloaded.reserve("bob", TIMESTAMP, "video", "b", planner.plan("bob", TIMESTAMP, "mp4")), "video");
+        assertEquals(2, new SaveIndex(dir).size());
+    }
+
+    @Test
+    public void malformedLastLineIsCutOff() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        save(index, index.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg")), "image");
+        long intact = journal.length();
+        // What a crash may leave behind on file systems that extend the file before writing it
+        append(journal, "\0\0\0\0\n");
+
+        assertEquals(1, new SaveIndex(dir).size());
+        assertEquals(intact, journal.length());
+    }
+
+    @Test
+    public void corruptLineInTheMiddleRebuildsFromTheFileNames() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        File planned = planner.plan("alice", TIMESTAMP, "jpg");
+        save(index, index.reserve("alice", TIMESTAMP, "image", "a", planned), "image");
+        append(journal, "garbage\n");
+        save(index, index.reserve("bob", TIMESTAMP, "video", "b", planner.plan("bob", TIMESTAMP, "mp4")), "video");
+
+        SaveIndex rebuilt = new SaveIndex(dir);
+        assertEquals(2, rebuilt.size());
+        for (SaveIndex.Entry entry : rebuilt.entries()) {
+            assertTrue(entry.rebuilt);
+            assertEquals(0, entry.hash);
+        }
+        // Rebuilt entries only know the second, but still match the snap
+        SaveIndex.Reservation again = rebuilt.reserve("alice", TIMESTAMP, "image", "a", planned);
+        assertEquals(planned.getPath(), again.saved.path);
+        // And the rebuilt journal is written, so the next load doesn't rebuild again
+        assertFalse(readFully(journal).contains("garbage"));
+        assertTrue(new SaveIndex(dir).entries().get(0).rebuilt);
+    }
+
+    @Test
+    public void removedSnapsAreCompactedAway() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        for (int i = 0; i < 20; i++)
+            save(index, index.reserve("alice", TIMESTAMP + i * 1000, "image", "id" + i,
+                    planner.plan("alice", TIMESTAMP + i * 1000, "jpg")), "image");
+        while (index.size() > 1)
+            index.remove(index.oldest());
+
+        SaveIndex reloaded = new SaveIndex(dir);
+        assertEquals(1, reloaded.size());
+        assertEquals("id19", reloaded.oldest().snapId);
+        assertEquals(1, readFully(journal).split("\n").length);
+    }
+
+    @Test
+    public void readOnlyIndexNeverWritesTheJournal() throws Exception {
+        SaveIndex index = new SaveIndex(dir);
+        save(index, index.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg")), "image");
+        // An append in progress, as seen by another process
+        append(journal, "bob\t" + TIMESTAMP);
+        byte[] before = readBytes(journal);
+
+        SaveIndex readOnly = SaveIndex.readOnly(dir);
+        assertEquals(1, readOnly.entries().size());
+        assertArrayEquals(before, readBytes(journal));
+    }
+
+    @Test
+    public void readOnlyIndexRebuildsOnlyInMemory() throws Exception {
+        File file = planner.plan("alice", TIMESTAMP, "jpg");
+        write(file, "image");
+        SaveIndex readOnly = SaveIndex.readOnly(dir);
+        assertEquals(1, readOnly.entries().size());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void readOnlyIndexRejectsChanges() throws Exception {
+        SaveIndex readOnly = SaveIndex.readOnly(dir);
+        try {
+            readOnly.reserve("alice", TIMESTAMP, "image", "a", planner.plan("alice", TIMESTAMP, "jpg"));
+            fail("Reserved in a read-only index");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private static SaveIndex.Entry save(SaveIndex index, SaveIndex.Reservation reservation, String content) throws IOException {
+        assertNull(reservation.saved);
+        write(reservation.file, content);
+        return index.add(reservation, SaveIndex.hashFile(reservation.file));
+    }
+
+    private static void assertStillWaiting(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Didn't wait for the save in progress");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+    }
+
+    private static File withCounter(File file, int counter) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), name.substring(0, dot) + "_" + counter + name.substring(dot));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void append(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String readFully(File file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+}
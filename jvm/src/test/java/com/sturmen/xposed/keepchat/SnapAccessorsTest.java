@@ -0,0 +1,101 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.Bitmap;
+import com.snapchat.android.model.ReceivedSnap;
+import com.snapchat.android.ui.SnapView;
+import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapAccessorsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private LoadPackageParam lpparam;
+
+    @Before
+    public void setUp() throws IOException {
+        lpparam = loadPackageParam(tmp.newFolder("data"), tmp.newFile("snapchat.apk"));
+    }
+
+    /** @return The parameters Xposed passes for Snapchat, with the fake Snapchat classes */
+    static LoadPackageParam loadPackageParam(File dataDir, File apk) {
+        LoadPackageParam lpparam = new LoadPackageParam();
+        lpparam.packageName = "com.snapchat.android";
+        lpparam.classLoader = SnapAccessorsTest.class.getClassLoader();
+        lpparam.appInfo = new ApplicationInfo();
+        lpparam.appInfo.dataDir = dataDir.getPath();
+        lpparam.appInfo.sourceDir = apk.getPath();
+        return lpparam;
+    }
+
+    @Test
+    public void resolvesAllAccessors() throws Exception {
+        SnapAccessors accessors = SnapAccessors.resolve(lpparam);
+        assertNotNull(accessors.getImageBitmap);
+        assertNotNull(accessors.getVideoUri);
+        assertNotNull(accessors.markViewed);
+        assertNotNull(accessors.wasScreenshotted);
+        assertNotNull(accessors.showImage);
+        assertNotNull(accessors.showVideo);
+        assertNotNull(accessors.setLoaded);
+
+        byte[] raw = {1, 2, 3};
+        ReceivedSnap image = new ReceivedSnap("alice", 1234L, "a", raw, Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+        assertEquals("alice", accessors.getSender(image));
+        assertEquals(1234L, accessors.getTimestamp(image));
+        assertEquals("a", accessors.getId(image));
+        assertArrayEquals(raw, accessors.getRawBytes(image));
+        assertFalse(accessors.isVideo(image));
+        assertTrue(accessors.isVideo(new ReceivedSnap("bob", 1234L, "b", "/data/b.mp4")));
+
+        Context context = new Context() {
+        };
+        assertSame(context, accessors.getContext(new SnapView(context)));
+    }
+
+    @Test
+    public void cachedMappingGivesTheSameAccessors() throws Exception {
+        SnapAccessors resolved = SnapAccessors.resolve(lpparam);
+        File cache = new File(lpparam.appInfo.dataDir).listFiles()[0];
+        long written = cache.lastModified();
+        SnapAccessors cached = SnapAccessors.resolve(lpparam);
+        assertEquals(resolved.showVideo, cached.showVideo);
+        assertEquals(resolved.setLoaded, cached.setLoaded);
+        // An unchanged mapping isn't written again
+        assertEquals(written, cache.lastModified());
+    }
+}
@@ -0,0 +1,150 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.SystemClock;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapRegistryTest {
+    private final SnapRegistry registry = new SnapRegistry();
+
+    @Test
+    public void snapsAreToldApartByIdentity() {
+        String snap = new String("a");
+        SnapRegistry.Entry entry = saved();
+        registry.register(snap, entry);
+        assertSame(entry, registry.get(snap));
+        assertNull(registry.get(new String("a")));
+        assertSame(entry, registry.consume(snap));
+        assertNull(registry.get(snap));
+    }
+
+    @Test
+    public void viewFrameGetsTheEntryRegisteredLast() {
+        registry.register(new Object(), saved());
+        registry.beginView();
+        SnapRegistry.Entry first = saved();
+        SnapRegistry.Entry last = saved();
+        registry.register(new Object(), first);
+        registry.register(new Object(), last);
+        assertSame(last, registry.endView());
+        // Nothing registered while no frame is open
+        assertNull(registry.endView());
+        registry.beginView();
+        assertNull(registry.endView());
+    }
+
+    @Test
+    public void replacedStagedEntryIsDiscarded() {
+        Object snap = new Object();
+        Staged staged = new Staged();
+        SnapRegistry.Entry entry = new SnapRegistry.Entry(true, staged);
+        registry.register(snap, entry);
+        // Registering the same entry again, e.g. for another view frame, keeps it
+        registry.register(snap, entry);
+        assertEquals(0, staged.discarded);
+        assertTrue(entry.isStaged());
+
+        registry.register(snap, new SnapRegistry.Entry(true, new Staged()));
+        assertEquals(1, staged.discarded);
+        assertFalse(entry.isStaged());
+    }
+
+    @Test
+    public void oldestStagedEntriesAreEvictedOverTheLimit() {
+        Object[] snaps = new Object[SnapRegistry.MAX_STAGED + 1];
+        Staged[] staged = new Staged[snaps.length];
+        for (int i = 0; i < snaps.length; i++) {
+            snaps[i] = new Object();
+            staged[i] = new Staged();
+            registry.register(snaps[i], new SnapRegistry.Entry(true, staged[i]));
+            SystemClock.advance(1);
+        }
+        assertNull(registry.get(snaps[0]));
+        assertEquals(1, staged[0].discarded);
+        for (int i = 1; i < snaps.length; i++) {
+            assertTrue(registry.get(snaps[i]).isStaged());
+            assertEquals(0, staged[i].discarded);
+        }
+    }
+
+    @Test
+    public void expiredEntriesAreSweptAndStagedOnesDiscarded() {
+        Object stagedSnap = new Object();
+        Object savedSnap = new Object();
+        Object prefetchedSnap = new Object();
+        Staged staged = new Staged();
+        registry.register(stagedSnap, new SnapRegistry.Entry(true, staged));
+        registry.register(savedSnap, saved());
+        registry.register(prefetchedSnap, new SnapRegistry.Entry(true, new SaveHandle(), true));
+
+        SystemClock.advance(SnapRegistry.STAGED_TTL_MILLIS + 1);
+        registry.register(new Object(), saved());
+        assertNull(registry.get(stagedSnap));
+        assertEquals(1, staged.discarded);
+        assertNotNull(registry.get(savedSnap));
+
+        SystemClock.advance(SnapRegistry.TTL_MILLIS);
+        registry.register(new Object(), saved());
+        assertNull(registry.get(savedSnap));
+        // Eager saves wait much longer for the snap to be opened
+        assertNotNull(registry.get(prefetchedSnap));
+    }
+
+    @Test
+    public void discardingATakenSaveDoesNothing() {
+        Staged staged = new Staged();
+        SnapRegistry.Entry entry = new SnapRegistry.Entry(false, staged);
+        assertSame(staged, entry.takeStaged());
+        entry.discardStaged();
+        assertEquals(0, staged.discarded);
+        assertFalse(entry.isStaged());
+    }
+
+    private static SnapRegistry.Entry saved() {
+        return new SnapRegistry.Entry(true, new SaveHandle());
+    }
+
+    private static final class Staged implements SnapRegistry.StagedSave {
+        int discarded;
+
+        @Override
+        public SaveHandle start() {
+            return new SaveHandle();
+        }
+
+        @Override
+        public void discard() {
+            discarded++;
+        }
+
+        @Override
+        public long estimatedBytes() {
+            return 100;
+        }
+    }
+}
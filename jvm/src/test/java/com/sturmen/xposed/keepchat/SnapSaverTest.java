@@ -0,0 +1,240 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+import com.snapchat.android.model.ReceivedSnap;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.sturmen.xposed.keepchat.Config.SAVE_ASK;
+import static com.sturmen.xposed.keepchat.Config.SAVE_AUTO;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapSaverTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File keepchat;
+    private SnapAccessors accessors;
+    private SnapRegistry registry;
+    private SaveEngine engine;
+    private Bitmap image;
+    private byte[] jpeg;
+
+    @Before
+    public void setUp() throws Exception {
+        keepchat = tmp.newFolder("keepchat");
+        accessors = SnapAccessors.resolve(SnapAccessorsTest.loadPackageParam(tmp.newFolder("data"), tmp.newFile("snapchat.apk")));
+        registry = new SnapRegistry();
+        engine = new SaveEngine(2, 16);
+        image = Bitmap.createBitmap(64, 48, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        jpeg = out.toByteArray();
+    }
+
+    /** @return A saver writing into the given folder, in the given image format and a flat layout */
+    static SnapSaver newSaver(File keepchat, SnapAccessors accessors, SnapRegistry registry, SaveEngine engine,
+                              int imageFormat) {
+        return new SnapSaver(accessors, registry, engine, new SaveIndex(keepchat), new AtomicCommitter(keepchat),
+                new MediaCopier(), new PathPlanner(keepchat, PathPlanner.SHARD_NONE), new ImageEncoder(imageFormat, 90));
+    }
+
+    /** @return The path the save reported on the main thread */
+    static String await(SaveHandle handle) throws InterruptedException {
+        final String[] result = new String[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        handle.whenDone(new SaveHandle.Callback() {
+            @Override
+            public void onSaved(String path) {
+                result[0] = path;
+                done.countDown();
+            }
+        });
+        if (!done.await(30, TimeUnit.SECONDS))
+            throw new AssertionError("Save not reported");
+        return result[0];
+    }
+
+    @Test
+    public void originalImageIsSavedFromTheDecryptedBytes() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        ReceivedSnap snap = new ReceivedSnap("alice", 1391400306789L, "a", jpeg, image);
+        SnapRegistry.Entry entry = saver.imageLoaded(snap, image, SAVE_AUTO, false);
+        assertSame(entry, registry.get(snap));
+        String path = await(entry.save);
+        assertTrue(path.endsWith(".jpg"));
+        assertArrayEquals(jpeg, AtomicCommitterTest.read(new File(path)));
+    }
+
+    @Test
+    public void reencodedImageSurvivesSnapchatRecyclingItsBitmap() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_PNG);
+        ReceivedSnap snap = new ReceivedSnap("alice", 1391400306789L, "a", jpeg, image);
+        SnapRegistry.Entry entry = saver.imageLoaded(snap, image, SAVE_AUTO, false);
+        image.recycle();
+        String path = await(entry.save);
+        assertTrue(path.endsWith(".png"));
+        assertTrue(new File(path).length() > 0);
+    }
+
+    @Test
+    public void replayedSnapIsSavedOnce() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        ReceivedSnap snap = new ReceivedSnap("alice", 1391400306789L, "a", jpeg, image);
+        String first = await(saver.imageLoaded(snap, image, SAVE_AUTO, false).save);
+        ReceivedSnap replayed = new ReceivedSnap("alice", 1391400306789L, "a", jpeg, image);
+        String second = await(saver.imageLoaded(replayed, image, SAVE_AUTO, false).save);
+        assertEquals(first, second);
+        assertEquals(1, savedFiles().length);
+    }
+
+    @Test
+    public void resentMediaIsNotWrittenAgain() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        String first = await(saver.imageLoaded(new ReceivedSnap("alice", 1000L, "a", jpeg, image), image, SAVE_AUTO, false).save);
+        // The same picture sent on by someone else
+        String second = await(saver.imageLoaded(new ReceivedSnap("bob", 2000L, "b", jpeg, image), image, SAVE_AUTO, false).save);
+        assertEquals(first, second);
+        assertEquals(1, savedFiles().length);
+        // Only the .nomedia file is left in the temp folder
+        assertEquals(1, new File(keepchat, AtomicCommitter.TMP_DIR_NAME).list().length);
+    }
+
+    @Test
+    public void snapsWithAKnownSaveAreNotCapturedAgain() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_PNG);
+        ReceivedSnap snap = new ReceivedSnap("alice", 1391400306789L, "a", jpeg, image);
+        SnapRegistry.Entry entry = saver.imageLoaded(snap, image, SAVE_AUTO, false);
+        String path = await(entry.save);
+        // Copying the recycled Bitmap would fail
+        image.recycle();
+        assertSame(entry, saver.imageLoaded(snap, image, SAVE_AUTO, false));
+        // A replayed snap is a new object, but the index knows it; nor is it asked for again
+        ReceivedSnap replayed = new ReceivedSnap("alice", 1391400306789L, "a", jpeg, image);
+        SnapRegistry.Entry saved = saver.imageLoaded(replayed, image, SAVE_ASK, false);
+        assertFalse(saved.isStaged());
+        assertEquals(path, await(saved.save));
+    }
+
+    @Test
+    public void stagedImageIsOnlyWrittenOnceStarted() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        SnapRegistry.Entry kept = saver.imageLoaded(new ReceivedSnap("alice", 1000L, "a", jpeg, image), image, SAVE_ASK, false);
+        SnapRegistry.Entry discarded = saver.imageLoaded(new ReceivedSnap("bob", 2000L, "b", jpeg, image), image, SAVE_ASK, false);
+        assertTrue(kept.isStaged());
+        assertNull(kept.save);
+        Metrics.Counter bytesDiscarded = Metrics.counter("staging.bytesDiscarded");
+        long before = bytesDiscarded.get();
+        saver.discard(discarded);
+        assertFalse(discarded.isStaged());
+        // The decrypted bytes would have been written as they are
+        assertEquals(jpeg.length, bytesDiscarded.get() - before);
+        assertEquals(0, savedFiles().length);
+
+        String path = await(kept.takeStaged().start());
+        assertArrayEquals(jpeg, AtomicCommitterTest.read(new File(path)));
+        assertEquals(1, savedFiles().length);
+    }
+
+    @Test
+    public void stagedVideoIsMovedIntoPlaceWhenStarted() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        byte[] content = {1, 2, 3, 4, 5, 6, 7, 8};
+        File video = tmp.newFile("video.mp4");
+        AtomicCommitterTest.write(video, content);
+        SnapRegistry.Entry entry = saver.videoLoaded(new ReceivedSnap("alice", 1000L, "a", video.getPath()),
+                video.getPath(), SAVE_ASK, false);
+        assertFalse(entry.isImage);
+        // Snapchat deletes its own copy before the user decides
+        String path = await(entry.takeStaged().start());
+        video.delete();
+        assertTrue(path.endsWith(".mp4"));
+        assertArrayEquals(content, AtomicCommitterTest.read(new File(path)));
+    }
+
+    @Test
+    public void eagerSaveIsPickedUpByTheGetter() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        ReceivedSnap snap = new ReceivedSnap("alice", 1000L, "a", jpeg, image);
+        SnapRegistry.Entry eager = saver.snapLoaded(snap, SAVE_AUTO, SAVE_AUTO);
+        assertNotNull(eager);
+        assertTrue(eager.prefetched);
+        assertSame(eager, saver.imageLoaded(snap, image, SAVE_AUTO, true));
+        assertArrayEquals(jpeg, AtomicCommitterTest.read(new File(await(eager.save))));
+    }
+
+    @Test
+    public void savedSnapsStartNoEagerSave() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        String path = await(saver.snapLoaded(new ReceivedSnap("alice", 1000L, "a", jpeg, image), SAVE_AUTO, SAVE_AUTO).save);
+        // Loaded again after a restart of Snapchat: nothing to save or scan, but the getter finds it
+        ReceivedSnap reloaded = new ReceivedSnap("alice", 1000L, "a", jpeg, image);
+        assertNull(saver.snapLoaded(reloaded, SAVE_AUTO, SAVE_AUTO));
+        SnapRegistry.Entry entry = saver.imageLoaded(reloaded, image, SAVE_AUTO, true);
+        assertTrue(entry.prefetched);
+        assertEquals(path, await(entry.save));
+    }
+
+    @Test
+    public void eagerVideoIsSavedFromTheOriginalGetter() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        File video = tmp.newFile("video.mp4");
+        AtomicCommitterTest.write(video, new byte[]{1, 2, 3});
+        SnapRegistry.Entry eager = saver.snapLoaded(new ReceivedSnap("alice", 1000L, "a", video.getPath()), SAVE_AUTO, SAVE_AUTO);
+        assertFalse(eager.isImage);
+        assertArrayEquals(new byte[]{1, 2, 3}, AtomicCommitterTest.read(new File(await(eager.save))));
+    }
+
+    @Test
+    public void imagesThatNeedTheBitmapAreNotSavedEagerly() throws Exception {
+        SnapSaver saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_JPEG);
+        ReceivedSnap snap = new ReceivedSnap("alice", 1000L, "a", jpeg, image);
+        assertNull(saver.snapLoaded(snap, SAVE_AUTO, SAVE_AUTO));
+        assertNull(registry.get(snap));
+        // Nor are snaps in Ask mode
+        saver = newSaver(keepchat, accessors, registry, engine, ImageEncoder.MODE_ORIGINAL);
+        assertNull(saver.snapLoaded(snap, SAVE_ASK, SAVE_AUTO));
+    }
+
+    private File[] savedFiles() {
+        return keepchat.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && !file.getName().equals(SaveIndex.JOURNAL_NAME);
+            }
+        });
+    }
+}
@@ -0,0 +1,369 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Streams all saved snaps into a single tar (ustar) archive, which is much faster to copy off the
+ * device than thousands of small files. The media is stored as is, it's compressed already.
+ * <p>
+ * The snaps are taken from a read-only {@link SaveIndex} in save order and copied with
+ * {@link FileChannel#transferTo}, so memory use doesn't depend on the number or size of the snaps.
+ * The archive ends with {@link #MANIFEST_NAME}, listing the sender and time of every snap in it.
+ * Snaps that were removed since they were saved, or whose name doesn't fit, are left out of both.
+ * <p>
+ * Every {@link #CHECKPOINT_FILES} snaps, the archive is synced and its length recorded in a
+ * checkpoint file next to it, along with the snaps skipped so far. An interrupted or cancelled export continues from there the next
+ * time, as long as the snaps saved up to the checkpoint are still the same.
+ */
+final class ArchiveExporter {
+    private static final String TAG = "Keepchat";
+    static final String ARCHIVE_NAME = "keepchat-export.tar";
+    static final String MANIFEST_NAME = "manifest.tsv";
+    /** Top level folder of the snaps inside the archive */
+    private static final String ROOT = "keepchat/";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int CHECKPOINT_FILES = 32;
+    private static final int BLOCK = 512;
+
+    /** Receives the progress of {@link #export(Listener)}, on the exporting thread. */
+    interface Listener {
+        /** @return Whether to go on, {@code false} stops the export so that it can be resumed later */
+        boolean onProgress(int done, int total, long bytes);
+    }
+
+    /** What {@link #export(Listener)} did. */
+    static final class Result {
+        final File archive;
+        final int files;
+        final int total;
+        /** Bytes written in this run, not counting the part of the archive that was resumed */
+        final long bytes;
+        final long nanos;
+        final boolean resumed;
+        final boolean complete;
+
+        Result(File archive, int files, int total, long bytes, long nanos, boolean resumed, boolean complete) {
+            this.archive = archive;
+            this.files = files;
+            this.total = total;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.resumed = resumed;
+            this.complete = complete;
+        }
+
+        /** @return The throughput of this run in MB/s */
+        double megabytesPerSecond() {
+            return nanos > 0 ? bytes * 1000.0 / nanos : 0;
+        }
+    }
+
+    private final File dir;
+    private final File archive;
+    private final File checkpoint;
+    private final byte[] header = new byte[BLOCK];
+    private final ByteBuffer zeros = ByteBuffer.allocate(16 * BLOCK);
+
+    /**
+     * @param dir The keepchat folder
+     * @param archive The archive to write, also the base name of its checkpoint file
+     */
+    ArchiveExporter(File dir, File archive) {
+        this.dir = dir;
+        this.archive = archive;
+        this.checkpoint = new File(archive.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    Result export(Listener listener) throws IOException {
+        long start = System.nanoTime();
+        // This runs outside of Snapchat, which may be saving at the same time, so leave the journal to it
+        List<SaveIndex.Entry> entries = SaveIndex.readOnly(dir).entries();
+        // The index lists the newest first, but only the oldest are sure not to change
+        Collections.reverse(entries);
+        int total = entries.size();
+
+        int done = 0;
+        long offset = 0;
+        BitSet skipped = new BitSet();
+        Properties saved = readCheckpoint();
+        if (saved != null) {
+            try {
+                int count = Integer.parseInt(saved.getProperty("count", "0"));
+                long length = Long.parseLong(saved.getProperty("offset", "0"));
+                BitSet savedSkipped = parseIndices(saved.getProperty("skipped", ""));
+                if (count <= total && archive.length() >= length && savedSkipped.length() <= count
+                        && (count == 0 || entries.get(count - 1).path.equals(saved.getProperty("last")))) {
+                    done = count;
+                    offset = length;
+                    skipped = savedSkipped;
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring broken export checkpoint. " + e);
+            }
+        }
+        boolean resumed = done > 0;
+
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            // Drop whatever was written after the checkpoint
+            file.setLength(offset);
+            FileChannel out = file.getChannel();
+            out.position(offset);
+            int sinceCheckpoint = 0;
+            while (done < total) {
+                if (!listener.onProgress(done, total, out.position() - offset)) {
+                    saveCheckpoint(file, done, entries, skipped);
+                    return new Result(archive, done, total, out.position() - offset, System.nanoTime() - start, resumed, false);
+                }
+                if (!writeSnap(out, entries.get(done)))
+                    skipped.set(done);
+                done++;
+                if (++sinceCheckpoint == CHECKPOINT_FILES) {
+                    saveCheckpoint(file, done, entries, skipped);
+                    sinceCheckpoint = 0;
+                }
+            }
+            writeManifest(out, entries, skipped);
+            // End of archive: two empty blocks
+            writeZeros(out, 2 * BLOCK);
+            file.getFD().sync();
+            long bytes = out.position() - offset;
+            listener.onProgress(done, total, bytes);
+            if (checkpoint.exists() && !checkpoint.delete())
+                checkpoint.deleteOnExit();
+            return new Result(archive, done, total, bytes, System.nanoTime() - start, resumed, true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /** @return {@code false} if the snap was skipped */
+    private boolean writeSnap(FileChannel out, SaveIndex.Entry entry) throws IOException {
+        File file = new File(entry.path);
+        // Removed since it was saved, e.g. by the retention manager
+        if (!file.isFile())
+            return false;
+        String name = ROOT + relativePath(file);
+        long size = file.length();
+        if (!writeHeader(out, name, size, file.lastModified())) {
+            Log.w(TAG, "Name too long for the archive, skipping " + name);
+            return false;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long copied = 0;
+            while (copied < size) {
+                long n = channel.transferTo(copied, size - copied, out);
+                if (n <= 0)
+                    break;
+                copied += n;
+            }
+            // The file shrank while copying, fill up to the size in the header
+            if (copied < size)
+                writeZeros(out, size - copied);
+        } finally {
+            in.close();
+        }
+        pad(out, size);
+        return true;
+    }
+
+    /**
+     * Writes the manifest without holding it in memory: the lines are formatted once to get the
+     * size for the header and once more to write them.
+     */
+    private void writeManifest(FileChannel out, List<SaveIndex.Entry> entries, BitSet skipped) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        long size = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (!skipped.get(i))
+                size += manifestLine(entries.get(i), dateFormat).length;
+        }
+        writeHeader(out, ROOT + MANIFEST_NAME, size, System.currentTimeMillis());
+        for (int i = 0; i < entries.size(); i++) {
+            if (!skipped.get(i))
+                out.write(ByteBuffer.wrap(manifestLine(entries.get(i), dateFormat)));
+        }
+        pad(out, size);
+    }
+
+    /** {@code path sender timestamp date type size}, separated by tabs */
+    private byte[] manifestLine(SaveIndex.Entry entry, SimpleDateFormat dateFormat) throws UnsupportedEncodingException {
+        String line = relativePath(new File(entry.path)) + "\t" + entry.sender.replace('\t', ' ')
+                + "\t" + entry.timestamp + "\t" + dateFormat.format(new Date(entry.timestamp))
+                + "\t" + entry.type + "\t" + entry.size + "\n";
+        return line.getBytes("UTF-8");
+    }
+
+    /** @return The path of the file relative to the keepchat folder, e.g. {@code sender/name.jpg} */
+    private String relativePath(File file) {
+        String root = dir.getPath() + "/";
+        String path = file.getPath();
+        return path.startsWith(root) ? path.substring(root.length()) : file.getName();
+    }
+
+    /** @return {@code false} if the name doesn't fit into a ustar header */
+    private boolean writeHeader(FileChannel out, String name, long size, long mtimeMillis) throws IOException {
+        byte[] bytes = name.getBytes("UTF-8");
+        int split = 0;
+        // Names over 100 bytes are split at a slash into the prefix and name fields
+        if (bytes.length > 100) {
+            split = -1;
+            for (int i = bytes.length - 101; i < bytes.length && i <= 155; i++) {
+                if (i > 0 && bytes[i] == '/') {
+                    split = i;
+                    break;
+                }
+            }
+            if (split < 0)
+                return false;
+        }
+        Arrays.fill(header, (byte) 0);
+        if (split > 0) {
+            System.arraycopy(bytes, split + 1, header, 0, bytes.length - split - 1);
+            System.arraycopy(bytes, 0, header, 345, split);
+        } else {
+            System.arraycopy(bytes, 0, header, 0, bytes.length);
+        }
+        octal(0644, header, 100, 8);
+        octal(0, header, 108, 8);
+        octal(0, header, 116, 8);
+        octal(size, header, 124, 12);
+        octal(mtimeMillis / 1000, header, 136, 12);
+        header[156] = '0';
+        System.arraycopy("ustar\0".getBytes("US-ASCII"), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        // The checksum is computed with its own field set to spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header)
+            sum += b & 0xff;
+        octal(sum, header, 148, 7);
+        out.write(ByteBuffer.wrap(header));
+        return true;
+    }
+
+    /** Writes the value as zero-padded octal digits followed by a NUL. */
+    private static void octal(long value, byte[] buf, int offset, int length) {
+        int digits = length - 1;
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buf[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+        buf[offset + digits] = 0;
+    }
+
+    /** Fills the last block of an entry of the given size with zeros. */
+    private void pad(FileChannel out, long size) throws IOException {
+        int rest = (int) (size % BLOCK);
+        if (rest != 0)
+            writeZeros(out, BLOCK - rest);
+    }
+
+    private void writeZeros(FileChannel out, long count) throws IOException {
+        while (count > 0) {
+            zeros.clear();
+            zeros.limit((int) Math.min(count, zeros.capacity()));
+            count -= out.write(zeros);
+        }
+    }
+
+    private Properties readCheckpoint() {
+        if (!checkpoint.exists())
+            return null;
+        Properties properties = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(checkpoint);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            return properties;
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Syncs the archive and then records how far it got, so a resumed export can trust it. */
+    private void saveCheckpoint(RandomAccessFile file, int done, List<SaveIndex.Entry> entries, BitSet skipped) throws IOException {
+        file.getFD().sync();
+        Properties properties = new Properties();
+        properties.setProperty("count", Integer.toString(done));
+        properties.setProperty("offset", Long.toString(file.getChannel().position()));
+        if (done > 0)
+            properties.setProperty("last", entries.get(done - 1).path);
+        properties.setProperty("skipped", formatIndices(skipped));
+        File tmp = new File(checkpoint.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, "Keepchat export");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(checkpoint))
+            throw new IOException("Could not rename " + tmp + " to " + checkpoint);
+    }
+
+    /** @return The set indices, separated by commas */
+    private static String formatIndices(BitSet indices) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(i);
+        }
+        return sb.toString();
+    }
+
+    /** @throws NumberFormatException If the list is broken */
+    private static BitSet parseIndices(String list) {
+        BitSet indices = new BitSet();
+        if (list.length() > 0) {
+            for (String index : list.split(","))
+                indices.set(Integer.parseInt(index));
+        }
+        return indices;
+    }
+}
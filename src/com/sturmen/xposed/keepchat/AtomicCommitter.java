@@ -0,0 +1,228 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes saved media appear in the keepchat folder atomically and durably: the data is written to
+ * a temp file in {@code keepchat/.tmp/}, synced to disk and only then renamed to its final name.
+ * If Snapchat is killed in the middle of a save, only a temp file is left behind, never a
+ * truncated snap that looks like it was saved.
+ * <p>
+ * Syncing is what makes this expensive, so concurrent commits are grouped without adding any
+ * latency: a commit arriving while another batch is being synced doesn't sync on its own, it waits
+ * for the syncing thread to pick it up together with everything else that queued up meanwhile.
+ * <p>
+ * Temp file names start with a token unique to this committer, i.e. to the process.
+ * {@link #recover()} only removes the files of other sessions, so it can run concurrently with
+ * saves; as the temp files all live in one directory, this is a single directory listing.
+ */
+final class AtomicCommitter {
+    static final String TMP_DIR_NAME = ".tmp";
+
+    private final File tmpDir;
+    /** Prefix of the temp files of this session */
+    private final String session = Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final AtomicLong sequence = new AtomicLong();
+    private final Object lock = new Object();
+    /** Commits waiting for the next batch, guarded by lock */
+    private List<Pending> pending = new ArrayList<Pending>();
+    /** Whether a thread is syncing a batch, guarded by lock */
+    private boolean syncing;
+    private final Metrics.Timer syncTimer = Metrics.timer("commit.sync");
+    private final Metrics.Counter committedFiles = Metrics.counter("commit.files");
+    private final Metrics.Gauge batchSize = Metrics.gauge("commit.batchSize");
+
+    /** @param dir The keepchat folder */
+    AtomicCommitter(File dir) {
+        tmpDir = new File(dir, TMP_DIR_NAME);
+    }
+
+    /** @return The temp file to write to before committing it to {@code target}. */
+    File tempFileFor(File target) throws IOException {
+        if (!tmpDir.isDirectory()) {
+            // Another save may have created it meanwhile
+            if (!tmpDir.mkdirs() && !tmpDir.isDirectory())
+                throw new IOException("Could not create " + tmpDir);
+            // Keep the media scanner out of here
+            new File(tmpDir, ".nomedia").createNewFile();
+        }
+        return new File(tmpDir, session + sequence.incrementAndGet() + "_" + target.getName());
+    }
+
+    /** Removes a temp file that won't be committed. */
+    void abort(File temp) {
+        if (temp.exists() && !temp.delete())
+            Logger.e("Could not remove temp file " + temp);
+    }
+
+    /**
+     * Syncs the completely written temp file and renames it to the target. Blocks until the file
+     * is in place.
+     *
+     * @throws IOException If syncing or renaming failed; the temp file is removed in that case
+     */
+    void commit(File temp, File target) throws IOException {
+        Pending mine = new Pending(temp, target);
+        boolean leader;
+        synchronized (lock) {
+            pending.add(mine);
+            // If a batch is being synced, its thread takes this one along with the next batch
+            leader = !syncing;
+            syncing = true;
+        }
+        if (leader) {
+            boolean drained = false;
+            try {
+                // Keep syncing until nothing queued up during the last batch
+                while (true) {
+                    List<Pending> batch;
+                    synchronized (lock) {
+                        if (pending.isEmpty()) {
+                            syncing = false;
+                            drained = true;
+                            break;
+                        }
+                        batch = pending;
+                        pending = new ArrayList<Pending>();
+                    }
+                    commitBatch(batch);
+                }
+            } finally {
+                // Don't leave the queued commits waiting for a leader that is gone
+                if (!drained) {
+                    List<Pending> batch;
+                    synchronized (lock) {
+                        batch = pending;
+                        pending = new ArrayList<Pending>();
+                        syncing = false;
+                    }
+                    finish(batch);
+                }
+            }
+        }
+        mine.await();
+    }
+
+    /**
+     * Deletes the temp files of earlier sessions, i.e. saves interrupted before their commit. Their
+     * data may be incomplete, so they can't be finished. The files of this session are left alone.
+     *
+     * @return The number of files removed
+     */
+    int recover() {
+        File[] orphans = tmpDir.listFiles();
+        int removed = 0;
+        if (orphans != null) {
+            for (File orphan : orphans) {
+                String name = orphan.getName();
+                if (!name.equals(".nomedia") && !name.startsWith(session) && orphan.delete())
+                    removed++;
+            }
+        }
+        if (removed > 0)
+            Logger.i("Removed orphaned temp files: ", removed);
+        return removed;
+    }
+
+    private void commitBatch(List<Pending> batch) {
+        try {
+            long start = syncTimer.start();
+            // Sync everything first, so the journal commits of the file system can be shared ...
+            for (Pending p : batch) {
+                try {
+                    // Read-only, so a temp file that vanished fails instead of being recreated empty
+                    RandomAccessFile file = new RandomAccessFile(p.temp, "r");
+                    try {
+                        file.getFD().sync();
+                    } finally {
+                        file.close();
+                    }
+                } catch (IOException e) {
+                    p.error = e;
+                } catch (RuntimeException e) {
+                    p.error = new IOException("Could not sync " + p.temp, e);
+                }
+            }
+            syncTimer.stop(start);
+            committedFiles.add(batch.size());
+            batchSize.set(batch.size());
+            // ... then move the synced files into place
+            for (Pending p : batch) {
+                try {
+                    if (p.error == null && !p.temp.renameTo(p.target))
+                        p.error = new IOException("Could not rename " + p.temp + " to " + p.target);
+                } catch (RuntimeException e) {
+                    p.error = new IOException("Could not rename " + p.temp + " to " + p.target, e);
+                }
+                p.committed = p.error == null;
+            }
+        } finally {
+            finish(batch);
+        }
+    }
+
+    /** Releases the waiting commits, failing and cleaning up those that didn't make it. */
+    private void finish(List<Pending> batch) {
+        for (Pending p : batch) {
+            if (!p.committed) {
+                if (p.error == null)
+                    p.error = new IOException("Commit of " + p.target + " was interrupted");
+                try {
+                    abort(p.temp);
+                } catch (RuntimeException e) {
+                    Logger.e("Could not remove temp file " + p.temp + ". " + e);
+                }
+            }
+            p.done.countDown();
+        }
+    }
+
+    private static final class Pending {
+        final File temp;
+        final File target;
+        final CountDownLatch done = new CountDownLatch(1);
+        IOException error;
+        boolean committed;
+
+        Pending(File temp, File target) {
+            this.temp = temp;
+            this.target = target;
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while committing " + target);
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.app.Activity;
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.ImageView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Grid of all saved snaps, newest first.
+ * <p>
+ * The list of snaps comes from a read-only {@link SaveIndex}, so opening the browser doesn't list
+ * or stat the keepchat folder. Only the thumbnails of visible cells are loaded, on two background threads
+ * through the {@link ThumbnailCache}; loads for cells that have been scrolled away in the
+ * meantime are skipped. The time from onCreate() to the first thumbnail on screen is logged as
+ * the cold open time.
+ */
+public class BrowserActivity extends Activity {
+    private static final String TAG = "Keepchat";
+
+    private final ExecutorService loader = Executors.newFixedThreadPool(2);
+    private List<SaveIndex.Entry> entries = Collections.emptyList();
+    private ThumbnailCache thumbnails;
+    private SnapAdapter adapter;
+    private long createdAt;
+    private boolean firstThumbnailShown;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        createdAt = SystemClock.uptimeMillis();
+        final File dir = new File(Environment.getExternalStorageDirectory().toString() + "/keepchat");
+        int sizePx = ThumbnailCache.sizePx();
+        thumbnails = new ThumbnailCache(dir);
+
+        GridView grid = new GridView(this);
+        grid.setNumColumns(GridView.AUTO_FIT);
+        grid.setColumnWidth(sizePx);
+        grid.setStretchMode(GridView.STRETCH_COLUMN_WIDTH);
+        grid.setHorizontalSpacing(2);
+        grid.setVerticalSpacing(2);
+        adapter = new SnapAdapter(sizePx);
+        grid.setAdapter(adapter);
+        grid.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                open(entries.get(position));
+            }
+        });
+        setContentView(grid);
+
+        new AsyncTask<Void, Void, List<SaveIndex.Entry>>() {
+            @Override
+            protected List<SaveIndex.Entry> doInBackground(Void... params) {
+                // Snapchat may be saving at the same time, so leave the journal to it
+                return SaveIndex.readOnly(dir).entries();
+            }
+
+            @Override
+            protected void onPostExecute(List<SaveIndex.Entry> result) {
+                entries = result;
+                setTitle("Saved snaps (" + result.size() + ")");
+                adapter.notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        loader.shutdownNow();
+        thumbnails.clearMemory();
+    }
+
+    private void open(SaveIndex.Entry entry) {
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setDataAndType(Uri.fromFile(new File(entry.path)), entry.type.equals("video") ? "video/*" : "image/*");
+        try {
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, "No app found to open " + entry.path, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void onThumbnailShown() {
+        if (firstThumbnailShown)
+            return;
+        firstThumbnailShown = true;
+        Log.i(TAG, "Browser cold open took " + (SystemClock.uptimeMillis() - createdAt) + "ms for "
+                + entries.size() + " snaps");
+    }
+
+    private final class SnapAdapter extends BaseAdapter {
+        private final int sizePx;
+
+        SnapAdapter(int sizePx) {
+            this.sizePx = sizePx;
+        }
+
+        @Override
+        public int getCount() {
+            return entries.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return entries.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            final ImageView view;
+            if (convertView == null) {
+                view = new ImageView(BrowserActivity.this);
+                view.setLayoutParams(new AbsListView.LayoutParams(sizePx, sizePx));
+                view.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            } else {
+                view = (ImageView) convertView;
+            }
+            final SaveIndex.Entry entry = entries.get(position);
+            // The tag tells background loads whether the cell still shows their snap
+            view.setTag(entry);
+            Bitmap cached = thumbnails.getFromMemory(entry);
+            view.setImageBitmap(cached);
+            if (cached != null) {
+                onThumbnailShown();
+                return view;
+            }
+            loader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (view.getTag() != entry)
+                        return;
+                    final Bitmap thumbnail = thumbnails.load(entry);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (view.getTag() != entry)
+                                return;
+                            view.setImageBitmap(thumbnail);
+                            onThumbnailShown();
+                        }
+                    });
+                }
+            });
+            return view;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.SystemClock;
+
+import java.io.File;
+
+import de.robv.android.xposed.XSharedPreferences;
+
+/**
+ * An immutable snapshot of Keepchat's preferences, as set in the {@link SettingsActivity}.
+ * <p>
+ * The hooks get the current snapshot from {@link Watcher#current()}, a single volatile read. The
+ * preferences file is only parsed again when its modification time has changed, which
+ * {@link Watcher#checkForChanges()} looks at no more often than every
+ * {@link Watcher#CHECK_INTERVAL_MILLIS}. So changed settings take effect without restarting
+ * Snapchat.
+ */
+final class Config {
+    // We cannot access the xml resources for the keepchat package, so we define the preference codes here...
+    static final int SAVE_NEVER = 0;
+    static final int SAVE_AUTO = 1;
+    static final int SAVE_ASK = 2;
+
+    final int imageSavingMode;
+    final int videoSavingMode;
+    final int toastMode;
+    final int imageFormat;
+    final int imageQuality;
+    final int logLevel;
+    final int retentionMaxMegabytes;
+    final int retentionMaxCount;
+    final int retentionMaxAgeDays;
+    final int sharding;
+    final boolean eagerSave;
+
+    /** @throws NumberFormatException If the preferences hold garbage */
+    private Config(XSharedPreferences prefs) {
+        imageSavingMode = Integer.parseInt(prefs.getString("pref_imageSaving", Integer.toString(SAVE_AUTO)));
+        videoSavingMode = Integer.parseInt(prefs.getString("pref_videoSaving", Integer.toString(SAVE_AUTO)));
+        toastMode = Integer.parseInt(prefs.getString("pref_toast", "-1"));
+        imageFormat = Integer.parseInt(prefs.getString("pref_imageFormat", Integer.toString(ImageEncoder.MODE_ORIGINAL)));
+        imageQuality = Integer.parseInt(prefs.getString("pref_imageQuality", "90"));
+        logLevel = Integer.parseInt(prefs.getString("pref_logLevel", Integer.toString(Logger.INFO)));
+        retentionMaxMegabytes = Integer.parseInt(prefs.getString("pref_retentionMaxMegabytes", "0"));
+        retentionMaxCount = Integer.parseInt(prefs.getString("pref_retentionMaxCount", "0"));
+        retentionMaxAgeDays = Integer.parseInt(prefs.getString("pref_retentionMaxAgeDays", "0"));
+        sharding = Integer.parseInt(prefs.getString("pref_sharding", Integer.toString(PathPlanner.SHARD_NONE)));
+        eagerSave = prefs.getBoolean("pref_eagerSave", false);
+    }
+
+    @Override
+    public String toString() {
+        return "Images -> " + imageSavingMode +
+                ", Videos -> " + videoSavingMode +
+                ", Toast -> " + toastMode +
+                ", Eager -> " + eagerSave +
+                ", Image format -> " + imageFormat + " (quality " + imageQuality + ")" +
+                ", Folders -> " + sharding +
+                ", Retention -> " + retentionMaxMegabytes + " MB/" + retentionMaxCount + " snaps/"
+                + retentionMaxAgeDays + " days";
+    }
+
+    /** Holds the current snapshot and replaces it when the preferences file changes. */
+    static final class Watcher {
+        static final long CHECK_INTERVAL_MILLIS = 2000;
+
+        interface Listener {
+            /** Called on the thread that noticed the change, after the new snapshot is current. */
+            void onConfigChanged(Config config);
+        }
+
+        private final XSharedPreferences prefs;
+        private final File file;
+        private volatile Config current;
+        private volatile Listener listener;
+        /** Guarded by this */
+        private long lastCheck;
+        private long lastModified;
+
+        /** Reads the preferences for the first time. */
+        Watcher(XSharedPreferences prefs) {
+            this.prefs = prefs;
+            this.file = prefs.getFile();
+            this.lastModified = file.lastModified();
+            this.lastCheck = SystemClock.uptimeMillis();
+            this.current = new Config(prefs);
+        }
+
+        Config current() {
+            return current;
+        }
+
+        void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Reloads the preferences if the file has changed since the last check. Does nothing if
+         * the last check was less than {@link #CHECK_INTERVAL_MILLIS} ago, so it's fine to call
+         * this often.
+         */
+        void checkForChanges() {
+            Config changed;
+            synchronized (this) {
+                long now = SystemClock.uptimeMillis();
+                if (now - lastCheck < CHECK_INTERVAL_MILLIS)
+                    return;
+                lastCheck = now;
+                long modified = file.lastModified();
+                if (modified == lastModified)
+                    return;
+                lastModified = modified;
+                prefs.reload();
+                try {
+                    changed = new Config(prefs);
+                } catch (NumberFormatException e) {
+                    Logger.e("Could not parse the changed preferences, keeping the old ones. " + e);
+                    return;
+                }
+                current = changed;
+            }
+            Logger.i("Reloaded saving preferences: ", changed);
+            Listener l = listener;
+            if (l != null)
+                l.onConfigChanged(changed);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One way of getting the bytes of a file to a new location. The {@link MediaCopier} tries its
+ * strategies from the cheapest to the most expensive one until one succeeds.
+ */
+interface CopyStrategy {
+    /** @return A short name for log messages and metrics. */
+    String getName();
+
+    /**
+     * Tries to make {@code dst} a copy of {@code src}.
+     *
+     * @param src The source file. Unless {@code srcDisposable} is set, it must be left untouched.
+     * @param dst The destination file, which must not exist yet
+     * @param srcDisposable Whether the source may be moved instead of copied
+     * @return {@code true} on success, {@code false} if the strategy isn't applicable, e.g. because
+     *         source and destination are on different volumes
+     * @throws IOException If the strategy was applicable, but copying failed
+     */
+    boolean copy(File src, File dst, boolean srcDisposable) throws IOException;
+}
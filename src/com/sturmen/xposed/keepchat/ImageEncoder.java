@@ -0,0 +1,229 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a snap image to a file in the format chosen in the preferences.
+ * <p>
+ * In {@link #MODE_ORIGINAL} the decrypted bytes Snapchat received are written as they are, which
+ * is both the cheapest and the lossless option. If these aren't available, the encoder falls back
+ * to JPEG. The other modes re-encode the Bitmap.
+ * <p>
+ * Encoding happens into a per-thread buffer which is reused across snaps, so that the file is
+ * written with a single write() and no new stream has to be allocated for every image. Encode time
+ * and bytes written are recorded in the {@link Metrics} under {@code encode.<format>}, the size of
+ * the re-encoded Bitmaps under {@code encode.<format>.inputBytes}. Their ratio gives
+ * {@link #estimateSize} for images that haven't been encoded yet.
+ */
+final class ImageEncoder {
+    // These correspond to the values of the pref_imageFormat preference
+    static final int MODE_ORIGINAL = 0;
+    static final int MODE_JPEG = 1;
+    static final int MODE_PNG = 2;
+    static final int MODE_WEBP = 3;
+
+    /** Buffers that grew larger than this are not kept around after use */
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+    /** The timer of each format, indexed by mode, so encoding doesn't look them up by name */
+    private static final Metrics.Timer[] timers = {
+            Metrics.timer("encode." + formatName(MODE_ORIGINAL)),
+            Metrics.timer("encode." + formatName(MODE_JPEG)),
+            Metrics.timer("encode." + formatName(MODE_PNG)),
+            Metrics.timer("encode." + formatName(MODE_WEBP)),
+    };
+    /** The Bitmap bytes that went into each format, indexed like the timers */
+    private static final Metrics.Counter[] inputBytes = {
+            Metrics.counter("encode." + formatName(MODE_ORIGINAL) + ".inputBytes"),
+            Metrics.counter("encode." + formatName(MODE_JPEG) + ".inputBytes"),
+            Metrics.counter("encode." + formatName(MODE_PNG) + ".inputBytes"),
+            Metrics.counter("encode." + formatName(MODE_WEBP) + ".inputBytes"),
+    };
+    /**
+     * Encoded size relative to the Bitmap of a typical snap in each format, until there are
+     * encodes to take it from. Indexed like the timers, the original bytes are never estimated.
+     */
+    private static final double[] defaultRatios = {1, 0.1, 0.5, 0.08};
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private final int mode;
+    private final int quality;
+
+    /**
+     * @param mode One of the MODE_* constants
+     * @param quality The quality used for JPEG and WebP, 0-100
+     */
+    ImageEncoder(int mode, int quality) {
+        this.mode = mode;
+        this.quality = quality;
+    }
+
+    /**
+     * @param raw The original image bytes, may be {@code null}
+     * @return The file suffix the image will be written with
+     */
+    String getSuffix(byte[] raw) {
+        switch (effectiveMode(raw)) {
+            case MODE_ORIGINAL:
+                return sniffSuffix(raw);
+            case MODE_PNG:
+                return "png";
+            case MODE_WEBP:
+                return "webp";
+            default:
+                return "jpg";
+        }
+    }
+
+    /** @return Whether {@link #encode} will use the Bitmap, or just the original bytes. */
+    boolean needsBitmap(byte[] raw) {
+        return effectiveMode(raw) != MODE_ORIGINAL;
+    }
+
+    /**
+     * @param bitmap The decoded image, only used if it would be re-encoded
+     * @param raw The original image bytes, may be {@code null}
+     * @return An estimate of the bytes {@link #encode} would write: exact for the original bytes,
+     *         otherwise the size of the Bitmap scaled by the ratio seen in earlier encodes
+     */
+    long estimateSize(Bitmap bitmap, byte[] raw) {
+        int effectiveMode = effectiveMode(raw);
+        if (effectiveMode == MODE_ORIGINAL)
+            return raw.length;
+        int slot = slot(effectiveMode);
+        long input = inputBytes[slot].get();
+        long output = timers[slot].getBytes();
+        double ratio = input > 0 && output > 0 ? (double) output / input : defaultRatios[slot];
+        return (long) (bitmap.getByteCount() * ratio);
+    }
+
+    /**
+     * Writes the image to the given file.
+     *
+     * @param bitmap The decoded image, used unless the original bytes are written
+     * @param raw The original image bytes, may be {@code null}
+     * @return The number of bytes written
+     */
+    long encode(Bitmap bitmap, byte[] raw, File file) throws IOException {
+        int effectiveMode = effectiveMode(raw);
+        int slot = slot(effectiveMode);
+        Metrics.Timer timer = timers[slot];
+        long start = timer.start();
+        long written;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            if (effectiveMode == MODE_ORIGINAL) {
+                out.write(raw);
+                written = raw.length;
+            } else {
+                Buffer buffer = buffers.get();
+                try {
+                    if (!bitmap.compress(compressFormat(effectiveMode), quality, buffer))
+                        throw new IOException("Bitmap could not be compressed");
+                    buffer.writeTo(out);
+                    written = buffer.size();
+                    inputBytes[slot].add(bitmap.getByteCount());
+                } finally {
+                    buffer.reset();
+                    if (buffer.capacity() > MAX_RETAINED_BUFFER)
+                        buffers.remove();
+                }
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+        timer.stop(start, written);
+        return written;
+    }
+
+    /** @return The index of the mode's metrics; unknown modes are encoded as JPEG, see compressFormat() */
+    private static int slot(int mode) {
+        return mode >= 0 && mode < timers.length ? mode : MODE_JPEG;
+    }
+
+    private int effectiveMode(byte[] raw) {
+        if (mode == MODE_ORIGINAL && sniffSuffix(raw) == null)
+            return MODE_JPEG;
+        return mode;
+    }
+
+    /** @return The file suffix matching the magic number of the image data, or {@code null}. */
+    private static String sniffSuffix(byte[] raw) {
+        if (raw == null || raw.length < 12)
+            return null;
+        if ((raw[0] & 0xff) == 0xff && (raw[1] & 0xff) == 0xd8)
+            return "jpg";
+        if ((raw[0] & 0xff) == 0x89 && raw[1] == 'P' && raw[2] == 'N' && raw[3] == 'G')
+            return "png";
+        if (raw[0] == 'R' && raw[1] == 'I' && raw[2] == 'F' && raw[3] == 'F'
+                && raw[8] == 'W' && raw[9] == 'E' && raw[10] == 'B' && raw[11] == 'P')
+            return "webp";
+        return null;
+    }
+
+    private static Bitmap.CompressFormat compressFormat(int mode) {
+        switch (mode) {
+            case MODE_PNG:
+                return Bitmap.CompressFormat.PNG;
+            case MODE_WEBP:
+                return Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    private static String formatName(int mode) {
+        switch (mode) {
+            case MODE_ORIGINAL:
+                return "original";
+            case MODE_PNG:
+                return "png";
+            case MODE_WEBP:
+                return "webp";
+            default:
+                return "jpeg";
+        }
+    }
+
+    /** A ByteArrayOutputStream whose backing array survives {@link #reset()}. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(256 * 1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
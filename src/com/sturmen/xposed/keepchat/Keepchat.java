@@ -1,23 +1,19 @@
 package com.sturmen.xposed.keepchat;
 
+import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.AndroidAppHelper;
+import android.app.Application;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
 import android.os.Environment;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.lang.reflect.Method;
 
 import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.XC_MethodHook;
@@ -26,145 +22,214 @@ import de.robv.android.xposed.XSharedPreferences;
 import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
 
-import static de.robv.android.xposed.XposedHelpers.callMethod;
+import static com.sturmen.xposed.keepchat.Config.SAVE_AUTO;
+import static com.sturmen.xposed.keepchat.Config.SAVE_NEVER;
 import static de.robv.android.xposed.XposedHelpers.findAndHookMethod;
 
 public class Keepchat implements IXposedHookLoadPackage {
     /** The getVideoUri() hook unfortunately doesn't provide a context for displaying a toast or
-     * calling the media scanner to show up the newly added media in the gallery. So after saving
-     * the video, we store the file path into the private videoPath variable which we can in turn
-     * access in the showVideo() hook (that gives us a context).
+     * calling the media scanner to show up the newly added media in the gallery. So after starting
+     * to save the video, we register the completion handle of the save with the snap registry,
+     * from which we can in turn get it in the showVideo() hook (that gives us a context).
      */
     private static final String PACKAGE_NAME = Keepchat.class.getPackage().getName();
-    // We cannot access the xml resources for the keepchat package, so we define the preference codes here...
-    private static final int SAVE_NEVER = 0;
-    private static final int SAVE_AUTO = 1;
-    private static final int SAVE_ASK = 2;
-    /** indicator for the type of snap (image/video) */
-    private boolean isImageSnap;
-    /** This string helps passing the path to the image or video saved in the getImageBitmap() or
-     * getVideoUri() hooks to the corresponding showImage() and showVideo() hooks. */
-	private String mediaPath;
-    /** Member to pass a context to hooks where a context is needed,
-     * but non available from within the hooked method */
-    private Context context;
-    //Load the preferences for Keepchat
-    XSharedPreferences savePrefs = new XSharedPreferences(PACKAGE_NAME);
-    final int imageSavingMode = Integer.parseInt(savePrefs.getString("pref_imageSaving", Integer.toString(SAVE_AUTO)));
-    final int videoSavingMode = Integer.parseInt(savePrefs.getString("pref_videoSaving", Integer.toString(SAVE_AUTO)));
-    final int toastMode = Integer.parseInt(savePrefs.getString("pref_toast", "-1"));
+    /** Passes the save state of each snap from the getImageBitmap() or getVideoUri() hooks
+     * to the corresponding showImage(), showVideo() and markViewed() hooks. */
+    private final SnapRegistry snapRegistry = new SnapRegistry();
+    /** Does the encoding and copying off Snapchat's thread. Created once Snapchat is loaded. */
+    private SaveEngine saveEngine;
+    //Load the preferences for Keepchat; they are reloaded when changed in the settings
+    private final Config.Watcher config = new Config.Watcher(new XSharedPreferences(PACKAGE_NAME));
+    /** Captures and starts the saves in the getter hooks. Created once Snapchat is loaded. */
+    private SnapSaver snapSaver;
+    /** Whether this Snapchat version lets us save snaps as soon as they are downloaded */
+    private boolean eagerAvailable;
+    /** The Snapchat methods we call and hook, resolved once in handleLoadPackage() */
+    private SnapAccessors accessors;
+    /** Batches the media scans and toasts of saved snaps. Created once Snapchat is loaded. */
+    private ScanScheduler scanScheduler;
+    /** Remembers which snaps have been saved already. Created once Snapchat is loaded. */
+    private SaveIndex saveIndex;
+    /** Moves completely written files into the keepchat folder. Created once Snapchat is loaded. */
+    private AtomicCommitter committer;
+    /** Keeps the keepchat folder within the storage budget. Created once Snapchat is loaded. */
+    private RetentionManager retentionManager;
+    private File keepchatDir;
+    /** Which groups of hooks are installed, only set while holding the lock on this */
+    private volatile boolean imageHooked, videoHooked, eagerHooked;
 
 
 	public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
 		if (!lpparam.packageName.equals("com.snapchat.android"))
 			return;
 		else
-			XposedBridge.log("Keepchat: Snapchat load detected.");
+			Logger.i("Snapchat load detected.");
 
-        XposedBridge.log("Loaded saving preferences: Images -> " + imageSavingMode +
-                ", Videos -> " + videoSavingMode +
-                ", Toast -> " + toastMode);
+        Config initial = config.current();
+        Logger.setLevel(initial.logLevel);
+        keepchatDir = new File(Environment.getExternalStorageDirectory().toString() + "/keepchat");
+        Logger.start(keepchatDir);
+        Logger.i("Loaded saving preferences: ", initial);
 
-        if (imageSavingMode != SAVE_NEVER) {
-		/*
-		 * getImageBitmap() hook
-		 * The ReceivedSnap class has a method to load a Bitmap in preparation for viewing.
-		 * This method returns said bitmap back so the application can display it.
-		 * We hook this method to intercept the result and write it to the SD card.
-		 * The file path is stored in the mediaPath member for later use in the showImage() hook.
-		 */
-            findAndHookMethod("com.snapchat.android.model.ReceivedSnap", lpparam.classLoader, "getImageBitmap", new XC_MethodHook() {
-                @Override
-                protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    File file = constructFileObject(param.thisObject, "jpg");
-                    // Check if the image was already saved.
-                    if (!file.exists()) {
-                        try {
-                            Bitmap myImage = (Bitmap) param.getResult();
-                            XposedBridge.log("Bitmap loaded.");
-                            //open a new outputstream for writing
-                            FileOutputStream out = new FileOutputStream(file);
-                            //use built-in bitmap function to turn it into a jpeg and write it to the stream
-                            myImage.compress(Bitmap.CompressFormat.JPEG, 90, out);
-                            //flush the stream to make sure it's done
-                            out.flush();
-                            //close it
-                            out.close();
-                            mediaPath = file.getCanonicalPath();
-                            XposedBridge.log("Saved image to " + mediaPath + "!");
-                            //set media type indicator
-                            isImageSnap = true;
-                        } catch (Exception e) {
-                            //reset mediaPath so that error Toast is shown and media scanner not run
-                            mediaPath = null;
-                            //if any exceptions are found, write to log
-                            XposedBridge.log("Error occurred while saving the image.");
-                            e.printStackTrace();
-                        }
-                    } else {
-                        XposedBridge.log("Image already saved, doing nothing.");
+        // Two workers are plenty for snaps opened back to back; if more than eight saves pile up,
+        // further snaps are reported as not saved rather than blocking Snapchat.
+        saveEngine = new SaveEngine(2, 8);
+        saveIndex = new SaveIndex(keepchatDir);
+        committer = new AtomicCommitter(keepchatDir);
+        // Clean up after saves that were interrupted when Snapchat was killed last time. This only
+        // touches temp files of earlier sessions, so saves may already run alongside. Then load the
+        // index, so the hooks can look up the snaps saved in earlier sessions without waiting.
+        saveEngine.submit(new SaveEngine.Job() {
+            @Override
+            public String save() {
+                committer.recover();
+                saveIndex.preload();
+                return null;
+            }
+        });
+        final ThumbnailCache thumbnails = new ThumbnailCache(keepchatDir);
+        retentionManager = new RetentionManager(saveIndex, thumbnails, initial.retentionMaxMegabytes,
+                initial.retentionMaxCount, initial.retentionMaxAgeDays);
+        saveEngine.setAfterSave(new SaveEngine.AfterSave() {
+            @Override
+            public void afterSave(String path) {
+                retentionManager.sweep();
+                // Have the thumbnail ready for the browser; staged videos in the temp folder
+                // aren't saved yet
+                if (!new File(path).getParentFile().getName().equals(AtomicCommitter.TMP_DIR_NAME))
+                    thumbnails.prepare(path);
+            }
+        });
+        accessors = SnapAccessors.resolve(lpparam);
+        snapSaver = new SnapSaver(accessors, snapRegistry, saveEngine, saveIndex, committer, new MediaCopier(),
+                new PathPlanner(keepchatDir, initial.sharding),
+                new ImageEncoder(initial.imageFormat, initial.imageQuality));
+        scanScheduler = new ScanScheduler(initial.toastMode);
+        eagerAvailable = accessors.setLoaded != null && accessors.isVideo != null;
+        if (initial.eagerSave && !eagerAvailable)
+            Logger.i("Eager saving not available, saving snaps when they are viewed.");
+
+        /*
+         * onPause() hook
+         * Flush pending media scans and write the diagnostics when Snapchat goes to the
+         * background, as the process may be killed any time after that.
+         */
+        findAndHookMethod(Activity.class, "onPause", new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                scanScheduler.flush();
+                Logger.requestDiagnostics();
+            }
+        });
+        /*
+         * onResume() hook
+         * The settings can only have changed while Snapchat was in the background, so this is
+         * where we check if the preferences file was modified and, if so, apply the new settings.
+         */
+        config.setListener(new Config.Watcher.Listener() {
+            @Override
+            public void onConfigChanged(Config changed) {
+                applyConfig(changed);
+            }
+        });
+        findAndHookMethod(Activity.class, "onResume", new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                config.checkForChanges();
+            }
+        });
+
+        // The saving hooks are only installed once their mode isn't "never", so they cost nothing
+        // while it is. Once installed, they stay and check the current mode on every call.
+        installHooks(initial);
+
+        hookMethod(accessors.markViewed, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                // The snap is done with, so its entry can go
+                SnapRegistry.Entry entry = snapRegistry.consume(param.thisObject);
+                if (entry == null)
+                    return;
+                //If auto saving is enabled, the media was already saved and the media scanner called
+                //So only call the dialog if the save is staged, waiting for the user to decide
+                if (entry.isStaged()) {
+                    if (entry.context == null) {
+                        Logger.i("No context for the dialog, snap wasn't shown.");
+                        entry.discardStaged();
+                        return;
                     }
-                    //return the image to the original caller so the app can continue
+                    showDialog(entry.context, entry);
+                    Logger.d("Show dialog in markViewed hook.");
                 }
-            });
+            }
+        });
+		/*
+		 * wasScreenshotted() hook
+		 * This method is called to see if the Snap was screenshotted.
+		 * We hook it to always return false, meaning that it was not screenshotted.
+		 */
+		hookMethod(accessors.wasScreenshotted, new XC_MethodReplacement() {
+			@Override
+			protected Object replaceHookedMethod(MethodHookParam param)
+					throws Throwable {
+				Logger.d("Not reporting screenshotted. :)");
+				// the line
+				return false;
+			}
+		});
+	} //END handleLoadPackage
+
+    /** Applies changed preferences to everything that was set up with the old ones. */
+    private void applyConfig(Config changed) {
+        Logger.setLevel(changed.logLevel);
+        snapSaver.setImageEncoder(new ImageEncoder(changed.imageFormat, changed.imageQuality));
+        snapSaver.setPathPlanner(new PathPlanner(keepchatDir, changed.sharding));
+        retentionManager.setLimits(changed.retentionMaxMegabytes, changed.retentionMaxCount,
+                changed.retentionMaxAgeDays);
+        scanScheduler.setToastMode(changed.toastMode);
+        installHooks(changed);
+    }
+
+    /** Installs the hooks needed for the given preferences that aren't installed yet. */
+    private synchronized void installHooks(Config current) {
+        if (!imageHooked && current.imageSavingMode != SAVE_NEVER) {
+            imageHooked = true;
+            hookImage();
+        }
+        if (!videoHooked && current.videoSavingMode != SAVE_NEVER) {
+            videoHooked = true;
+            hookVideo();
+        }
+        if (!eagerHooked && eagerAvailable && current.eagerSave) {
+            eagerHooked = true;
+            hookEager();
         }
+    }
 
-        if (videoSavingMode != SAVE_NEVER) {
+    private void hookImage() {
 		/*
-		 * getVideoUri() hook
-		 * The ReceivedSnap class treats videos a little differently.
-		 * Videos are not their own object, so they can't be passed around.
-		 * The Android system basically provides a VideoView for viewing videos,
-		 * which you just provide it the location of the video and it does the rest.
-		 *
-		 * Unsurprisingly, Snapchat makes use of this View.
-		 * This method in the ReceivedSnap class gets the URI of the video
-		 * in preparation for one of these VideoViews.
-		 * We hook in, intercept the result (a String), then copy the bytes from
-		 * that location to our SD directory. This results in a bit of a slowdown
-		 * for the user, but luckily this takes place before they actually view it.
-		 *
-		 * The file path is stored in the mediaPath member for later use in the showVideo() hook.
+		 * getImageBitmap() hook
+		 * The ReceivedSnap class has a method to load a Bitmap in preparation for viewing.
+		 * This method returns said bitmap back so the application can display it.
+		 * We hook this method to intercept the result and hand it to the save engine, which
+		 * writes it to the SD card in the background. The completion handle is registered with
+		 * the snap registry for later use in the showImage() and markViewed() hooks. In Ask mode,
+		 * the save is only staged in the registry until the user decides in the dialog.
 		 */
-            findAndHookMethod("com.snapchat.android.model.ReceivedSnap", lpparam.classLoader, "getVideoUri", new XC_MethodHook() {
-                @Override
-                protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                    String videoUri = (String) param.getResult();
-                    XposedBridge.log("Video is at " + videoUri);
-                    File file = constructFileObject(param.thisObject, "mp4");
-                    mediaPath = file.getCanonicalPath();
-                    try {
-                        //make a new input stream from the video URI
-                        FileInputStream in = new FileInputStream(new File(videoUri));
-                        //make a new output stream to write to
-                        FileOutputStream out = new FileOutputStream(file);
-                        //make a buffer we use for copying
-                        byte[] buf = new byte[1024];
-                        int len;
-                        //copy the file over using a while loop
-                        while ((len = in.read(buf)) > 0) {
-                            out.write(buf, 0, len);
-                        }
-                        //close the input stream
-                        in.close();
-                        //flush the output stream so we know it's finished
-                        out.flush();
-                        //and then close it
-                        out.close();
-                        mediaPath = file.getCanonicalPath();
-                        XposedBridge.log("Saved video to " + mediaPath + " !");
-                        //set media type indicator
-                        isImageSnap = false;
-                    } catch (Exception e) {
-                        //reset mediaPath so that error Toast is shown and media scanner not run
-                        mediaPath = null;
-                        //if any exceptions are found, write to log
-                        XposedBridge.log("Error occurred while saving the video.");
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        hookMethod(accessors.getImageBitmap, new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                Config current = config.current();
+                if (current.imageSavingMode == SAVE_NEVER)
+                    return;
+                Bitmap myImage = (Bitmap) param.getResult();
+                if (myImage == null)
+                    return;
+                snapSaver.imageLoaded(param.thisObject, myImage, current.imageSavingMode,
+                        isEagerSaving(current, current.imageSavingMode));
+                //return the image to the original caller so the app can continue
+            }
+        });
 
 		/*
 		 * showVideo() and showImage() hooks
@@ -175,150 +240,199 @@ public class Keepchat implements IXposedHookLoadPackage {
 		 * But these getters are called from the corresponding showVideo() and showImage() methods
 		 * of com.snapchat.android.ui.SnapView, which deliver the needed context. So the work that
 		 * needs a context is done here, while the file saving work is done in the getters.
-		 * The getters also save the file paths in the mediaPath member, which we use here.
+		 * The getters register the completion handle of their save with the snap registry. As we
+		 * don't know which snap is shown, we open a view frame before the method runs, to which
+		 * the getters called from it attach their entry, and get the saved file path from that
+		 * entry once the save engine has finished.
 		 */
-        if (imageSavingMode != SAVE_NEVER)
-        findAndHookMethod("com.snapchat.android.ui.SnapView", lpparam.classLoader, "showImage", new XC_MethodHook() {
+        hookMethod(accessors.showImage, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                snapRegistry.beginView();
+            }
+
             @Override
             protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                //At this point the context is put in the private member so that the dialog can be
+                SnapRegistry.Entry entry = snapRegistry.endView();
+                int mode = config.current().imageSavingMode;
+                if (mode == SAVE_NEVER)
+                    return;
+                Context context = accessors.getContext(param.thisObject);
+                //At this point the context is put in the entry so that the dialog can be
                 //initiated from the markViewed() hook
-                context = (Context) callSuperMethod(param.thisObject, "getContext");
-                if (imageSavingMode == SAVE_AUTO)
-                    runMediaScanAndToast(context, mediaPath, "image");
+                if (entry != null)
+                    entry.context = context;
+                if (mode == SAVE_AUTO)
+                    runMediaScanAndToast(context, entry != null ? entry.save : null, "image");
+            }
+        });
+    }
+
+    private void hookVideo() {
+		/*
+		 * getVideoUri() hook
+		 * The ReceivedSnap class treats videos a little differently.
+		 * Videos are not their own object, so they can't be passed around.
+		 * The Android system basically provides a VideoView for viewing videos,
+		 * which you just provide it the location of the video and it does the rest.
+		 *
+		 * Unsurprisingly, Snapchat makes use of this View.
+		 * This method in the ReceivedSnap class gets the URI of the video
+		 * in preparation for one of these VideoViews.
+		 * We hook in, intercept the result (a String), then let the save engine copy the
+		 * bytes from that location to our SD directory in the background, so the user
+		 * doesn't notice any slowdown.
+		 *
+		 * The completion handle is registered with the snap registry for later use in the
+		 * showVideo() and markViewed() hooks.
+		 */
+        hookMethod(accessors.getVideoUri, new XC_MethodHook() {
+            @Override
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                Config current = config.current();
+                if (current.videoSavingMode == SAVE_NEVER)
+                    return;
+                String videoUri = (String) param.getResult();
+                if (videoUri == null)
+                    return;
+                Logger.d("Video is at ", videoUri);
+                snapSaver.videoLoaded(param.thisObject, videoUri, current.videoSavingMode,
+                        isEagerSaving(current, current.videoSavingMode));
             }
         });
-        if (videoSavingMode != SAVE_NEVER)
-        findAndHookMethod("com.snapchat.android.ui.SnapView", lpparam.classLoader, "showVideo", Context.class, new XC_MethodHook() {
+
+        // See the showImage() hook above
+        hookMethod(accessors.showVideo, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                snapRegistry.beginView();
+            }
+
             @Override
 			protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                //At this point the context is put in the private member so that the dialog can be
+                SnapRegistry.Entry entry = snapRegistry.endView();
+                int mode = config.current().videoSavingMode;
+                if (mode == SAVE_NEVER)
+                    return;
+                Context context = (Context) param.args[0];
+                //At this point the context is put in the entry so that the dialog can be
                 //initiated from the markViewed() hook
-                context = (Context) param.args[0];
-                if (videoSavingMode == SAVE_AUTO)
-                    runMediaScanAndToast(context, mediaPath, "video");
+                if (entry != null)
+                    entry.context = context;
+                if (mode == SAVE_AUTO)
+                    runMediaScanAndToast(context, entry != null ? entry.save : null, "video");
             }
 		});
+    }
 
-        findAndHookMethod("com.snapchat.android.model.ReceivedSnap", lpparam.classLoader, "markViewed", new XC_MethodHook() {
+    private void hookEager() {
+		/*
+		 * setIsLoaded() hook
+		 * Snapchat calls this once a received snap has been downloaded and decrypted, which is
+		 * usually well before the user opens it. In eager mode, we start saving the snap right
+		 * here, so the getter hooks above only have to pick up the save when the snap is viewed.
+		 * The saving itself happens on the save engine's background threads.
+		 *
+		 * Only what Snapchat already holds is saved this early: the video path and the decrypted
+		 * image bytes, fetched here on Snapchat's own thread. Images that would need a Bitmap are
+		 * left to the getImageBitmap() hook, as decoding them is Snapchat's business; so are
+		 * snaps whose data isn't there yet.
+		 *
+		 * Once an eager save has finished, the file is handed to the media scanner through the
+		 * application context, as the snap may never be opened. Only the toast waits for the
+		 * snap to be shown.
+		 */
+        hookMethod(accessors.setLoaded, new XC_MethodHook() {
             @Override
-            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                //If auto saving is enabled, the media was already saved and the media scanner called
-                //So only call the dialog is asking is enabled
-                if ((isImageSnap && imageSavingMode == SAVE_ASK) || (!isImageSnap && videoSavingMode == SAVE_ASK)) {
-                    showDialog(context);
-                    XposedBridge.log("Show dialog in markViewed hook.");
-                }
+            protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                Config current = config.current();
+                if (!current.eagerSave || !Boolean.TRUE.equals(param.args[0]))
+                    return;
+                SnapRegistry.Entry entry = snapSaver.snapLoaded(param.thisObject, current.imageSavingMode,
+                        current.videoSavingMode);
+                if (entry == null)
+                    return;
+                entry.save.whenDone(new SaveHandle.Callback() {
+                    @Override
+                    public void onSaved(String path) {
+                        Application application = AndroidAppHelper.currentApplication();
+                        if (path != null && application != null)
+                            scanScheduler.addQuietly(application, path);
+                    }
+                });
             }
         });
-		/*
-		 * wasScreenshotted() hook
-		 * This method is called to see if the Snap was screenshotted.
-		 * We hook it to always return false, meaning that it was not screenshotted.
-		 */
-		findAndHookMethod("com.snapchat.android.model.ReceivedSnap", lpparam.classLoader, "wasScreenshotted", new XC_MethodReplacement() {
-			@Override
-			protected Object replaceHookedMethod(MethodHookParam param)
-					throws Throwable {
-				XposedBridge.log("Not reporting screenshotted. :)");
-				// the line
-				return false;
-			}
-		});
-	} //END handleLoadPackage
+    }
+
+    /** @return Whether snaps saved with the given mode are saved as soon as they are downloaded */
+    private boolean isEagerSaving(Config current, int mode) {
+        return current.eagerSave && eagerHooked && mode == SAVE_AUTO;
+    }
+
+    /**
+     * Waits for the given save to finish (without blocking the calling thread) and then runs
+     * {@link #runMediaScanAndToast(Context, String, String)} on the saved file.
+     *
+     * @param handle Completion handle of the save, may be {@code null} if no save was started
+     */
+    private void runMediaScanAndToast(final Context context, SaveHandle handle, final String type) {
+        if (handle == null) {
+            runMediaScanAndToast(context, (String) null, type);
+            return;
+        }
+        handle.whenDone(new SaveHandle.Callback() {
+            @Override
+            public void onSaved(String path) {
+                runMediaScanAndToast(context, path, type);
+            }
+        });
+    }
+
    /**
     * Tells the media scanner to scan the newly added image or video so that it shows up in the
-    * gallery without a reboot. And shows a Toast message where the media was saved.
+    * gallery without a reboot. And shows a Toast message where the media was saved. Both are
+    * batched by the scan scheduler, so a series of snaps gets a single scan and toast.
     *
     * @param context Current context
     * @param filePath File to be scanned by the media scanner
     */
     private void runMediaScanAndToast(Context context, String filePath, String type) {
-        String toastText;
-        // If the filePath is not null, show a toast with the path and call the media scanner.
-        // Otherwise, show an error toast message.
+        // If the filePath is not null, queue the file for the media scanner and the batched toast.
+        // Otherwise, show an error toast message right away.
         if (filePath != null) {
-            // so video saved successfully.
-            toastText = "Saved " + type + " to " + filePath;
-            try {
-                XposedBridge.log("MediaScanner running: " + filePath);
-                // Run MediaScanner on file, so it shows up in Gallery instantly
-                MediaScannerConnection.scanFile(context,
-                        new String[]{filePath}, null,
-                        new MediaScannerConnection.OnScanCompletedListener() {
-                            public void onScanCompleted(String path, Uri uri) {
-                                if (uri != null) {
-                                    XposedBridge.log("MediaScanner ran successfully: " + uri.toString());
-                                } else {
-                                    XposedBridge.log("Unknown error occurred while trying to run MediaScanner");
-                                }
-                            }
-                        });
-            } catch (Exception e) {
-                XposedBridge.log("Error occurred while trying to run MediaScanner");
-                e.printStackTrace();
-            }
+            scanScheduler.add(context, filePath);
         } else {
-            toastText = type + " could not be saved! file null.";
+            int toastMode = config.current().toastMode;
+            if (toastMode >= 0)
+                Toast.makeText(context, type + " could not be saved! file null.", toastMode).show();
         }
-        //construct the toast notification
-        if (toastMode >= 0)
-            Toast.makeText(context, toastText, toastMode).show();
     }
 
     /**
-     * Return a File object to safe the image/video.
-     * The filename will be in the format <sender>_yyyy-MM-dd_HH-mm-ss.<suffix>
-     * and it resides in the <i>keepchat/</i> subfolder on the SD card. Along the way,
-     * the <i>keepchat/</i> subfolder is created if not existent.
-     *
-     * @param snapObject The ReceivedSnap Object, which contains the necessary information, i.e.,
-     *                   the senser's name and the snap's timestamp. It should be passed to the
-     *                   method via 'param.thisObject' inside a hooked method.
+     * Shows the dialog asking whether to keep the media. Only if the user chooses to keep it, the
+     * staged save of the snap is started. Discarding an image costs no I/O at all, discarding a
+     * video only deletes its staged copy.
      *
-     * @param suffix The file suffix, either "jpg" or "mp4"
+     * @param entry The registry entry of the snap, holding the staged save
      */
-    private File constructFileObject(Object snapObject, String suffix) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-        //we construct a path for us to write to
-        String root = Environment.getExternalStorageDirectory().toString();
-        //and add our own directory
-        File myDir = new File(root + "/keepchat");
-        XposedBridge.log("Saving to directory " + myDir.toString());
-        //we make the directory if it doesn't exist.
-        if (myDir.mkdirs())
-            XposedBridge.log("Directory " + myDir.toString() + " was created.");
-        //construct the filename. It shall start with the sender's name...
-        String sender = (String) callMethod(snapObject, "getSender");
-        //...continue with the current date and time, lexicographically...
-        SimpleDateFormat fnameDateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US);
-          // ReceivedSnap extends the Snap class. getTimestamp() is a member of the Snap class,
-          // so we cannot access it via XposedHelpers.callMethod() and have to use our own reflection for that
-        Date timestamp = new Date((Long) callSuperMethod(snapObject, "getTimestamp"));
-        //...and end in the suffix provided ("jpg" or "mp4")
-        String fname = sender + "_" + (fnameDateFormat.format(timestamp)) + "." + suffix;
-        XposedBridge.log("Saving with filename " + fname);
-        //construct a File object
-        return new File (myDir, fname);
-    }
-
-    private void showDialog(final Context dContext) {
+    private void showDialog(final Context dContext, final SnapRegistry.Entry entry) {
         // 1. Instantiate an AlertDialog.Builder with its constructor
         AlertDialog.Builder builder = new AlertDialog.Builder(dContext);
 
         // 2. Chain together various setter methods to set the dialog characteristics
-        final String mediaTypeStr = isImageSnap ? "image" : "video";
-        builder.setMessage("The " + mediaTypeStr + " will be saved at\n" + mediaPath).setTitle("Save " + mediaTypeStr + "?");
+        final String mediaTypeStr = entry.isImage ? "image" : "video";
+        builder.setMessage("The " + mediaTypeStr + " will be saved in the keepchat folder.").setTitle("Save " + mediaTypeStr + "?");
 
         builder.setPositiveButton("Save", new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int id) {
-                XposedBridge.log("User choose to save. Keep saved file.");
-                runMediaScanAndToast(dContext, mediaPath, mediaTypeStr);
+                Logger.d("User choose to save.");
+                commitStaged(dContext, entry, mediaTypeStr);
             }
         });
         builder.setNeutralButton("Settings", new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int id) {
-                XposedBridge.log("User choose to show settings. Keep saved file.");
-                runMediaScanAndToast(dContext, mediaPath, mediaTypeStr);
+                Logger.d("User choose to show settings. Save file.");
+                commitStaged(dContext, entry, mediaTypeStr);
                 Intent settingsIntent = new Intent(Intent.ACTION_MAIN, null);
                 settingsIntent.addCategory(Intent.CATEGORY_LAUNCHER);
                 settingsIntent.setComponent(ComponentName.unflattenFromString("com.sturmen.xposed.keepchat/.SettingsActivity"));
@@ -327,39 +441,39 @@ public class Keepchat implements IXposedHookLoadPackage {
         });
         builder.setNegativeButton("Discard", new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int id) {
-                XposedBridge.log("User choose not to save.");
+                Logger.d("User choose not to save.");
                 dialog.cancel();
             }
         });
         builder.setOnCancelListener(new DialogInterface.OnCancelListener() {
             @Override
             public void onCancel(DialogInterface dialog) {
-                if ((new File(mediaPath)).delete())
-                    XposedBridge.log("File " + mediaPath + " deleted successfully");
-                else
-                    XposedBridge.log("Could not delete file " + mediaPath);
+                // Frees the staged image or deletes the staged video
+                snapSaver.discard(entry);
             }
         });
         // 3. Get the AlertDialog from create()
         AlertDialog dialog = builder.create();
         dialog.show();
     }
-    /** {@code XposedHelpers.callMethod()} cannot call methods of the super class of an object, because it
-     * uses {@code getDeclaredMethods()}. So we have to implement this little helper, which should work
-     * similar to {@code }callMethod()}. Furthermore, the exceptions from getMethod() are passed on.
-     * <p>
-     * At the moment, only argument-free methods supported (only case needed here). After a discussion
-     * with the Xposed author it looks as if the functionality to call super methods will be implemented
-     * in {@code XposedHelpers.callMethod()} in a future release.
-     *
-     * @param obj Object whose method should be called
-     * @param methodName String representing the name of the argument-free method to be called
-     * @return The object that the method call returns
-     * @see <a href="http://forum.xda-developers.com/showpost.php?p=42598280&postcount=1753">
-     *     Discussion about calls to super methods in Xposed's XDA thread</a>
+
+    /** Starts the staged save of the snap and queues the result for the media scanner and toast. */
+    private void commitStaged(Context context, SnapRegistry.Entry entry, String type) {
+        SnapRegistry.StagedSave staged = entry.takeStaged();
+        if (staged != null)
+            entry.save = staged.start();
+        runMediaScanAndToast(context, entry.save, type);
+    }
+
+    /**
+     * Hooks the given method, unless it couldn't be resolved for this Snapchat version.
      */
-    private Object callSuperMethod(Object obj, String methodName) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        return obj.getClass().getMethod(methodName).invoke(obj);
+    private static void hookMethod(Method method, XC_MethodHook callback) {
+        if (method == null) {
+            Logger.e("Hook target not found, feature disabled.");
+            return;
+        }
+        XposedBridge.hookMethod(method, callback);
     }
 
 }
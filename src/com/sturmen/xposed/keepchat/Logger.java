@@ -0,0 +1,219 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import de.robv.android.xposed.XposedBridge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+
+/**
+ * Leveled logger for the code running inside Snapchat.
+ * <p>
+ * Messages go into an in-memory ring buffer, which a background thread drains into the Xposed log
+ * at most {@link #FLUSH_INTERVAL_MILLIS} after the first buffered message (right away for errors),
+ * so logging never does I/O on the calling thread. While there's nothing to log, the thread sleeps
+ * until there is. When asked to with {@link #requestDiagnostics()}, the same thread writes the
+ * {@link Metrics} to a diagnostics file, which the SettingsActivity shows, unless they haven't
+ * changed since the last time.
+ * <p>
+ * A disabled level costs a single volatile read. To keep it that way, messages built from more
+ * than one value should be guarded with {@link #isLoggable(int)}; the two-argument methods only
+ * concatenate if the level is enabled.
+ */
+final class Logger {
+    // These correspond to the values of the pref_logLevel preference
+    static final int ERROR = 0;
+    static final int INFO = 1;
+    static final int DEBUG = 2;
+
+    static final String DIAGNOSTICS_NAME = ".diagnostics";
+    private static final int CAPACITY = 256;
+    private static final long FLUSH_INTERVAL_MILLIS = 2000;
+
+    private static volatile int level = INFO;
+    private static final String[] ring = new String[CAPACITY];
+    /** Index of the oldest message and number of messages in the ring, guarded by ring */
+    private static int head, size;
+    private static long dropped;
+    /** Whether an error is waiting to be flushed, or the diagnostics should be written, guarded by ring */
+    private static boolean urgent, diagnosticsRequested;
+    private static Thread flusher;
+    /** The metrics written last, only accessed by the flusher */
+    private static String lastDiagnostics;
+
+    private Logger() {
+    }
+
+    static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    static boolean isLoggable(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    static void e(String message) {
+        append("E ", message);
+        wakeFlusher(false);
+    }
+
+    static void e(String message, Throwable t) {
+        StringWriter trace = new StringWriter();
+        t.printStackTrace(new PrintWriter(trace));
+        append("E ", message + "\n" + trace);
+        wakeFlusher(false);
+    }
+
+    /**
+     * Has the metrics written to the diagnostics file, e.g. when Snapchat goes to the background.
+     * Nothing is written if they didn't change since the last time.
+     */
+    static void requestDiagnostics() {
+        wakeFlusher(true);
+    }
+
+    static void i(String message) {
+        if (INFO <= level)
+            append("I ", message);
+    }
+
+    static void i(String message, Object arg) {
+        if (INFO <= level)
+            append("I ", message + arg);
+    }
+
+    static void d(String message) {
+        if (DEBUG <= level)
+            append("D ", message);
+    }
+
+    static void d(String message, Object arg) {
+        if (DEBUG <= level)
+            append("D ", message + arg);
+    }
+
+    /**
+     * Starts the background thread flushing the ring buffer, if it isn't running yet.
+     *
+     * @param diagnosticsDir The directory to write the metrics file to
+     */
+    static synchronized void start(final File diagnosticsDir) {
+        if (flusher != null)
+            return;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    boolean diagnostics;
+                    synchronized (ring) {
+                        try {
+                            while (size == 0 && !diagnosticsRequested)
+                                ring.wait();
+                            // Give further messages a chance to join the same log call
+                            if (!urgent && !diagnosticsRequested)
+                                ring.wait(FLUSH_INTERVAL_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        diagnostics = diagnosticsRequested;
+                        diagnosticsRequested = false;
+                        urgent = false;
+                    }
+                    flush();
+                    if (diagnostics)
+                        writeDiagnostics(new File(diagnosticsDir, DIAGNOSTICS_NAME));
+                }
+            }
+        }, "Keepchat-log");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Writes all buffered messages to the Xposed log with a single call. */
+    static void flush() {
+        StringBuilder sb;
+        synchronized (ring) {
+            if (size == 0)
+                return;
+            sb = new StringBuilder();
+            if (dropped > 0) {
+                sb.append("Keepchat: ").append(dropped).append(" log messages dropped\n");
+                dropped = 0;
+            }
+            for (; size > 0; size--) {
+                sb.append("Keepchat: ").append(ring[head]).append('\n');
+                ring[head] = null;
+                head = (head + 1) % CAPACITY;
+            }
+        }
+        sb.setLength(sb.length() - 1);
+        XposedBridge.log(sb.toString());
+    }
+
+    private static void append(String prefix, String message) {
+        String line = prefix + message;
+        synchronized (ring) {
+            if (size == CAPACITY) {
+                // Overwrite the oldest message
+                head = (head + 1) % CAPACITY;
+                size--;
+                dropped++;
+            }
+            ring[(head + size) % CAPACITY] = line;
+            size++;
+            // The flusher sleeps until the first message arrives
+            if (size == 1)
+                ring.notify();
+        }
+    }
+
+    /** @param diagnostics Whether to write the diagnostics, otherwise flush the buffered error now */
+    private static void wakeFlusher(boolean diagnostics) {
+        synchronized (ring) {
+            if (diagnostics)
+                diagnosticsRequested = true;
+            else
+                urgent = true;
+            ring.notify();
+        }
+    }
+
+    private static void writeDiagnostics(File file) {
+        String metrics = Metrics.dump();
+        if (metrics.equals(lastDiagnostics))
+            return;
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(("Recorded " + new Date() + "\n\n" + metrics).getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            lastDiagnostics = metrics;
+        } catch (IOException e) {
+            // The keepchat folder may not exist yet, try again next time
+        }
+    }
+}
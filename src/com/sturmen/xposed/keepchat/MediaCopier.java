@@ -0,0 +1,219 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies media files (i.e. the videos) into the keepchat folder, using the cheapest
+ * {@link CopyStrategy} that works for the given source and destination:
+ * <ol>
+ *     <li>a hard link, which only works if both files are on the same (non-FAT) volume,</li>
+ *     <li>a rename, which only works on the same volume and only if the source may be moved,</li>
+ *     <li>{@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ *     which lets the kernel do the copying,</li>
+ *     <li>a plain stream copy with a large buffer as the last resort.</li>
+ * </ol>
+ * The strategy that was used and its throughput are logged and recorded in the {@link Metrics}
+ * under {@code copy.<strategy>}.
+ */
+final class MediaCopier {
+    private final CopyStrategy[] strategies;
+    /** The timer of each strategy, looked up once instead of on every copy */
+    private final Metrics.Timer[] timers;
+
+    MediaCopier() {
+        this(new LinkStrategy(), new RenameStrategy(), new ChannelStrategy(), new StreamStrategy());
+    }
+
+    MediaCopier(CopyStrategy... strategies) {
+        this.strategies = strategies;
+        timers = new Metrics.Timer[strategies.length];
+        for (int i = 0; i < strategies.length; i++)
+            timers[i] = Metrics.timer("copy." + strategies[i].getName());
+    }
+
+    /**
+     * Copies {@code src} to {@code dst}.
+     *
+     * @param srcDisposable Whether the source may be moved instead of copied. Never set this for
+     *                      files owned by Snapchat.
+     * @return The name of the strategy that was used
+     * @throws IOException If no strategy succeeded. A partially written destination is removed.
+     */
+    String copy(File src, File dst, boolean srcDisposable) throws IOException {
+        IOException lastError = null;
+        for (int i = 0; i < strategies.length; i++) {
+            CopyStrategy strategy = strategies[i];
+            Metrics.Timer timer = timers[i];
+            long start = timer.start();
+            try {
+                if (!strategy.copy(src, dst, srcDisposable))
+                    continue;
+            } catch (IOException e) {
+                lastError = e;
+                if (dst.exists() && !dst.delete())
+                    Logger.e("Could not remove partial copy " + dst);
+                continue;
+            }
+            long nanos = System.nanoTime() - start;
+            long bytes = dst.length();
+            timer.record(nanos, bytes);
+            if (Logger.isLoggable(Logger.DEBUG))
+                Logger.d("Copied " + bytes + " bytes using " + strategy.getName() + " in "
+                        + nanos / 1000 + "us" + (nanos > 0 ? " (" + bytes * 1000L / nanos + " MB/s)" : ""));
+            return strategy.getName();
+        }
+        throw lastError != null ? lastError : new IOException("No copy strategy applicable for " + src);
+    }
+
+    /** Hard links the destination to the source; fails (cheaply) across volumes and on FAT. */
+    static final class LinkStrategy implements CopyStrategy {
+        /** The receiver of {@link #link}: {@code null} for the static android.system.Os.link() */
+        private final Object os;
+        private final Method link;
+
+        LinkStrategy() {
+            Object os = null;
+            Method link = null;
+            try {
+                // Public API since Lollipop
+                link = Class.forName("android.system.Os").getMethod("link", String.class, String.class);
+            } catch (Exception e) {
+                try {
+                    // Older releases only have it in libcore
+                    os = Class.forName("libcore.io.Libcore").getField("os").get(null);
+                    link = os.getClass().getMethod("link", String.class, String.class);
+                } catch (Exception e2) {
+                    os = null;
+                    link = null;
+                }
+            }
+            this.os = os;
+            this.link = link;
+        }
+
+        @Override
+        public String getName() {
+            return "link";
+        }
+
+        @Override
+        public boolean copy(File src, File dst, boolean srcDisposable) {
+            if (link == null)
+                return false;
+            try {
+                link.invoke(os, src.getPath(), dst.getPath());
+                return true;
+            } catch (InvocationTargetException e) {
+                // EXDEV, EPERM and the like: the volumes don't support linking these files
+                return false;
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+        }
+    }
+
+    /** Moves the source into place, for sources we own, e.g. staged files. */
+    static final class RenameStrategy implements CopyStrategy {
+        @Override
+        public String getName() {
+            return "rename";
+        }
+
+        @Override
+        public boolean copy(File src, File dst, boolean srcDisposable) {
+            return srcDisposable && src.renameTo(dst);
+        }
+    }
+
+    /** Lets the kernel copy the bytes via {@link FileChannel#transferTo}. */
+    static final class ChannelStrategy implements CopyStrategy {
+        @Override
+        public String getName() {
+            return "transferTo";
+        }
+
+        @Override
+        public boolean copy(File src, File dst, boolean srcDisposable) throws IOException {
+            FileInputStream in = new FileInputStream(src);
+            try {
+                FileOutputStream out = new FileOutputStream(dst);
+                try {
+                    FileChannel inChannel = in.getChannel();
+                    FileChannel outChannel = out.getChannel();
+                    long size = inChannel.size();
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = inChannel.transferTo(position, size - position, outChannel);
+                        if (transferred <= 0)
+                            break;
+                        position += transferred;
+                    }
+                    if (position < size)
+                        throw new IOException("transferTo stalled at " + position + " of " + size + " bytes");
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            return true;
+        }
+    }
+
+    /** Plain read/write loop, which always works. */
+    static final class StreamStrategy implements CopyStrategy {
+        /** Large enough to keep the number of read()/write() calls per video in the hundreds */
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        @Override
+        public String getName() {
+            return "stream";
+        }
+
+        @Override
+        public boolean copy(File src, File dst, boolean srcDisposable) throws IOException {
+            FileInputStream in = new FileInputStream(src);
+            try {
+                FileOutputStream out = new FileOutputStream(dst);
+                try {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int len;
+                    while ((len = in.read(buf)) > 0) {
+                        out.write(buf, 0, len);
+                    }
+                    out.flush();
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            return true;
+        }
+    }
+}
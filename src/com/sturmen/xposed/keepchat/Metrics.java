@@ -0,0 +1,222 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide registry of named counters, gauges and timers. Recording is a couple of atomic operations,
+ * so it is cheap enough to be used from inside the hooks.
+ * <p>
+ * Callers should look up their {@link Timer}, {@link Counter} or {@link Gauge} once and keep the reference
+ * instead of calling {@link #timer(String)} on every event.
+ */
+final class Metrics {
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private Metrics() {
+    }
+
+    static Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            Timer created = new Timer();
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null)
+                timer = created;
+        }
+        return timer;
+    }
+
+    static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    static Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            Gauge created = new Gauge();
+            gauge = gauges.putIfAbsent(name, created);
+            if (gauge == null)
+                gauge = created;
+        }
+        return gauge;
+    }
+
+    /** @return A human readable, alphabetically sorted summary of all metrics recorded so far. */
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).entrySet())
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        for (Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(gauges).entrySet())
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        for (Map.Entry<String, Timer> e : new TreeMap<String, Timer>(timers).entrySet())
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /** A monotonic counter. */
+    static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        void inc() {
+            value.incrementAndGet();
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(value.get());
+        }
+    }
+
+    /** The current value of something that goes up and down, e.g. a queue depth, and its maximum. */
+    static final class Gauge {
+        private final AtomicLong value = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void set(long sample) {
+            value.set(sample);
+            long current;
+            while (sample > (current = max.get()))
+                if (max.compareAndSet(current, sample))
+                    break;
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return value.get() + " (max " + max.get() + ")";
+        }
+    }
+
+    /**
+     * Records durations in nanoseconds together with an optional amount of bytes processed.
+     * <p>
+     * The durations also go into a histogram with power-of-two buckets (bucket {@code i} counts
+     * durations below 2<sup>i</sup> microseconds), from which the percentiles are estimated.
+     */
+    static final class Timer {
+        private static final int BUCKETS = 32;
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        /** @return The start timestamp to be passed to {@link #stop(long)}. */
+        long start() {
+            return System.nanoTime();
+        }
+
+        void stop(long start) {
+            record(System.nanoTime() - start, 0);
+        }
+
+        void stop(long start, long byteCount) {
+            record(System.nanoTime() - start, byteCount);
+        }
+
+        void record(long nanos, long byteCount) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            bytes.addAndGet(byteCount);
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000)));
+            long current;
+            while (nanos > (current = maxNanos.get()))
+                if (maxNanos.compareAndSet(current, nanos))
+                    break;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        long getMeanNanos() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / n;
+        }
+
+        /**
+         * @param percentile The percentile, 0-100
+         * @return The upper bound in microseconds of the bucket the percentile falls into
+         */
+        long getPercentileMicros(int percentile) {
+            long rank = (count.get() * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank && seen > 0)
+                    return 1L << i;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            StringBuilder sb = new StringBuilder();
+            sb.append("n=").append(n)
+                    .append(" mean=").append(getMeanNanos() / 1000).append("us")
+                    .append(" p50<").append(getPercentileMicros(50)).append("us")
+                    .append(" p90<").append(getPercentileMicros(90)).append("us")
+                    .append(" p99<").append(getPercentileMicros(99)).append("us")
+                    .append(" max=").append(maxNanos.get() / 1000).append("us");
+            long b = bytes.get();
+            long total = totalNanos.get();
+            if (b > 0 && total > 0)
+                sb.append(" bytes=").append(b)
+                        .append(" rate=").append(b * 1000L / total).append("MB/s");
+            return sb.toString();
+        }
+    }
+}
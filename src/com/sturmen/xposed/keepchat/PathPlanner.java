@@ -0,0 +1,166 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides where a snap is saved. The file name is {@code <sender>_yyyy-MM-dd_HH-mm-ss.<suffix>} in
+ * local time, optionally inside a per-sender or per-month subfolder of the keepchat folder.
+ * Same-second collisions are resolved by the {@link SaveIndex}.
+ * <p>
+ * This runs for every saved snap, so the folders are created only once and remembered, and the
+ * timestamp is formatted by hand into a per-thread buffer instead of using a new SimpleDateFormat.
+ * Sender names are reduced to {@code [A-Za-z0-9._-]}, so they are always safe as file names.
+ */
+final class PathPlanner {
+    // Same values as in arrays.xml
+    static final int SHARD_NONE = 0;
+    static final int SHARD_SENDER = 1;
+    static final int SHARD_MONTH = 2;
+
+    private static final String UNKNOWN_SENDER = "unknown";
+
+    private final File root;
+    private final int sharding;
+    /** Folders known to exist, by their name relative to the keepchat folder ("" for itself) */
+    private final ConcurrentMap<String, File> dirs = new ConcurrentHashMap<String, File>();
+    private final Metrics.Timer planTimer = Metrics.timer("path.plan");
+
+    private static final ThreadLocal<Formatter> formatter = new ThreadLocal<Formatter>() {
+        @Override
+        protected Formatter initialValue() {
+            return new Formatter();
+        }
+    };
+
+    /**
+     * @param root The keepchat folder
+     * @param sharding One of {@link #SHARD_NONE}, {@link #SHARD_SENDER} and {@link #SHARD_MONTH}
+     */
+    PathPlanner(File root, int sharding) {
+        this.root = root;
+        this.sharding = sharding;
+    }
+
+    /**
+     * @param sender The sender's name, as returned by the ReceivedSnap's getSender()
+     * @param timestampMillis The snap's timestamp, as returned by the ReceivedSnap's getTimestamp()
+     * @param suffix The file suffix, e.g. "jpg" or "mp4"
+     * @return The file to save the snap to. Its folder exists, unless it couldn't be created.
+     */
+    File plan(String sender, long timestampMillis, String suffix) {
+        long start = planTimer.start();
+        Formatter f = formatter.get();
+        f.calendar.setTimeInMillis(timestampMillis);
+        StringBuilder sb = f.buffer;
+
+        sb.setLength(0);
+        if (sharding == SHARD_SENDER)
+            appendSanitized(sb, sender);
+        else if (sharding == SHARD_MONTH)
+            f.appendMonth(sb);
+        File dir = dir(sb.toString());
+
+        sb.setLength(0);
+        appendSanitized(sb, sender);
+        sb.append('_');
+        f.appendDateTime(sb);
+        sb.append('.').append(suffix);
+        File file = new File(dir, sb.toString());
+        planTimer.stop(start);
+        return file;
+    }
+
+    /** @return The sender's name as it appears in file names */
+    static String sanitize(String sender) {
+        StringBuilder sb = new StringBuilder(sender == null ? 0 : sender.length());
+        appendSanitized(sb, sender);
+        return sb.toString();
+    }
+
+    private File dir(String name) {
+        File dir = dirs.get(name);
+        if (dir != null)
+            return dir;
+        dir = name.length() == 0 ? root : new File(root, name);
+        if (dir.mkdirs())
+            Logger.i("Created directory ", dir);
+        // If it couldn't be created, try again next time
+        if (dir.isDirectory())
+            dirs.put(name, dir);
+        return dir;
+    }
+
+    private static void appendSanitized(StringBuilder sb, String sender) {
+        int start = sb.length();
+        if (sender != null) {
+            for (int i = 0; i < sender.length(); i++) {
+                char c = sender.charAt(i);
+                boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || c == '-' || c == '_' || (c == '.' && sb.length() > start);
+                sb.append(safe ? c : '_');
+            }
+        }
+        if (sb.length() == start)
+            sb.append(UNKNOWN_SENDER);
+    }
+
+    /** Per-thread calendar and buffer, as neither is thread-safe. */
+    private static final class Formatter {
+        final Calendar calendar = Calendar.getInstance();
+        final StringBuilder buffer = new StringBuilder(64);
+
+        /** Appends yyyy-MM */
+        void appendMonth(StringBuilder sb) {
+            append(sb, calendar.get(Calendar.YEAR), 4);
+            sb.append('-');
+            append(sb, calendar.get(Calendar.MONTH) + 1, 2);
+        }
+
+        /** Appends yyyy-MM-dd_HH-mm-ss */
+        void appendDateTime(StringBuilder sb) {
+            appendMonth(sb);
+            sb.append('-');
+            append(sb, calendar.get(Calendar.DAY_OF_MONTH), 2);
+            sb.append('_');
+            append(sb, calendar.get(Calendar.HOUR_OF_DAY), 2);
+            sb.append('-');
+            append(sb, calendar.get(Calendar.MINUTE), 2);
+            sb.append('-');
+            append(sb, calendar.get(Calendar.SECOND), 2);
+        }
+
+        private static void append(StringBuilder sb, int value, int digits) {
+            for (int d = digits - 1, pow = pow10(d); d >= 0; d--, pow /= 10)
+                sb.append((char) ('0' + value / pow % 10));
+        }
+
+        private static int pow10(int exponent) {
+            int pow = 1;
+            for (int i = 0; i < exponent; i++)
+                pow *= 10;
+            return pow;
+        }
+    }
+}
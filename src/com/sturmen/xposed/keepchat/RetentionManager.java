@@ -0,0 +1,136 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.app.AndroidAppHelper;
+import android.app.Application;
+import android.content.ContentResolver;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the keepchat folder within the storage budget set in the preferences: a maximum total
+ * size, a maximum number of snaps and a maximum age. Snaps are evicted oldest first.
+ * <p>
+ * The budget is checked with the totals of the {@link SaveIndex}, so the keepchat folder is never
+ * listed. {@link #sweep()} runs on a save engine worker after each save has been reported and
+ * deletes at most {@link #MAX_EVICTIONS_PER_SWEEP} files, so a lowered budget is enforced gradually
+ * over the next saves instead of delaying one of them. Evicted files are removed from the
+ * MediaStore as well, through Snapchat's application context. A file that can't be deleted stays
+ * in the index and stops the sweep, it is tried again after the next save.
+ */
+final class RetentionManager {
+    static final int MAX_EVICTIONS_PER_SWEEP = 8;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final SaveIndex index;
+    private final ThumbnailCache thumbnails;
+    private volatile long maxBytes;
+    private volatile int maxCount;
+    private volatile long maxAgeMillis;
+    private final Metrics.Counter evictions = Metrics.counter("retention.evictions");
+    private final Metrics.Counter evictedBytes = Metrics.counter("retention.evictedBytes");
+    private volatile ContentResolver resolver;
+
+    /**
+     * @param maxMegabytes The maximum total size in MB, 0 for no limit
+     * @param maxCount The maximum number of snaps, 0 for no limit
+     * @param maxAgeDays The maximum age in days, 0 for no limit
+     */
+    RetentionManager(SaveIndex index, ThumbnailCache thumbnails, int maxMegabytes, int maxCount, int maxAgeDays) {
+        this.index = index;
+        this.thumbnails = thumbnails;
+        setLimits(maxMegabytes, maxCount, maxAgeDays);
+    }
+
+    /** Changes the limits, they apply from the next {@link #sweep()} on. See the constructor. */
+    void setLimits(int maxMegabytes, int maxCount, int maxAgeDays) {
+        this.maxBytes = maxMegabytes * 1024L * 1024L;
+        this.maxCount = maxCount;
+        this.maxAgeMillis = maxAgeDays * DAY_MILLIS;
+    }
+
+    /** @return Whether any limit is set at all. */
+    boolean isEnabled() {
+        return maxBytes > 0 || maxCount > 0 || maxAgeMillis > 0;
+    }
+
+    /** @return The resolver to remove evicted files from the MediaStore, {@code null} if there's no application yet */
+    private ContentResolver resolver() {
+        if (resolver == null) {
+            Application application = AndroidAppHelper.currentApplication();
+            if (application != null)
+                resolver = application.getContentResolver();
+        }
+        return resolver;
+    }
+
+    /** Evicts the oldest snaps until the folder is within budget or the per-sweep limit is hit. */
+    void sweep() {
+        if (!isEnabled())
+            return;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < MAX_EVICTIONS_PER_SWEEP; i++) {
+            SaveIndex.Entry oldest = index.oldest();
+            if (oldest == null || !overBudget(oldest, now) || !evict(oldest))
+                return;
+        }
+    }
+
+    private boolean overBudget(SaveIndex.Entry oldest, long now) {
+        return (maxBytes > 0 && index.totalBytes() > maxBytes)
+                || (maxCount > 0 && index.size() > maxCount)
+                || (maxAgeMillis > 0 && now - oldest.timestamp > maxAgeMillis);
+    }
+
+    /** @return Whether the file is gone, otherwise the entry is kept */
+    private boolean evict(SaveIndex.Entry entry) {
+        File file = new File(entry.path);
+        if (!file.delete() && file.exists()) {
+            Logger.e("Could not delete " + entry.path + " to free space");
+            return false;
+        }
+        try {
+            index.remove(entry);
+        } catch (IOException e) {
+            Logger.e("Could not record the eviction of " + entry.path + ". " + e);
+        }
+        thumbnails.remove(entry);
+        ContentResolver resolver = resolver();
+        if (resolver != null) {
+            try {
+                // Saves are scanned with the path the index has; older versions scanned the canonical one
+                resolver.delete(MediaStore.Files.getContentUri("external"),
+                        MediaStore.MediaColumns.DATA + "=? OR " + MediaStore.MediaColumns.DATA + "=?",
+                        new String[]{entry.path, file.getCanonicalPath()});
+            } catch (Exception e) {
+                Logger.e("Could not remove " + entry.path + " from the MediaStore. " + e);
+            }
+        } else {
+            Logger.i("No application context, the MediaStore keeps the evicted ", entry.path);
+        }
+        evictions.inc();
+        evictedBytes.add(entry.size);
+        Logger.d("Evicted ", entry.path);
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the expensive part of saving a snap (encoding, copying, writing) on a small pool of
+ * background threads, so that the getImageBitmap() and getVideoUri() hooks only have to capture
+ * the Bitmap or the video path and can return immediately.
+ * <p>
+ * The work queue is bounded, so pending Bitmaps can't pile up in memory. If it is full, the job is
+ * dropped and its handle completed with {@code null}, i.e. "not saved", rather than running it on
+ * the submitting thread, which is Snapchat's UI thread. Dropped jobs are counted as
+ * {@code engine.rejected}.
+ */
+final class SaveEngine {
+    /** Work to do after each successful save, see {@link #setAfterSave(AfterSave)}. */
+    interface AfterSave {
+        /** @param path The path of the saved file, as recorded in the {@link SaveIndex} */
+        void afterSave(String path);
+    }
+
+    /** A unit of work for the engine, e.g. writing one Bitmap to the SD card. */
+    interface Job {
+        /**
+         * @return The path of the saved file or {@code null} if nothing was saved
+         * @throws Exception Any error; it is logged and the handle is completed with {@code null}
+         */
+        String save() throws Exception;
+    }
+
+    /** Every that many finished saves the metrics are written to the debug log. */
+    private static final int LOG_INTERVAL = 10;
+
+    private final ThreadPoolExecutor executor;
+    /** Run on the worker after each save's handle was completed with a path, may be {@code null} */
+    private volatile AfterSave afterSave;
+    private final Metrics.Gauge queueDepth = Metrics.gauge("engine.queueDepth");
+    private final Metrics.Counter rejected = Metrics.counter("engine.rejected");
+    private final Metrics.Timer submitTimer = Metrics.timer("engine.submit");
+    private final Metrics.Timer waitTimer = Metrics.timer("engine.queueWait");
+    private final Metrics.Timer saveTimer = Metrics.timer("engine.save");
+
+    SaveEngine(int threads, int queueCapacity) {
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the housekeeping to run after each successful save, e.g. enforcing the storage budget.
+     * It runs on the worker once the save has been reported, so it doesn't delay the toast.
+     */
+    void setAfterSave(AfterSave task) {
+        afterSave = task;
+    }
+
+    /**
+     * Queues the job and returns a handle for its result. This is meant to be called from inside a
+     * hook, so it does nothing but enqueueing. If the queue is full, the job is dropped and the
+     * handle completed with {@code null}.
+     */
+    SaveHandle submit(final Job job) {
+        final long submitted = submitTimer.start();
+        final SaveHandle handle = new SaveHandle();
+        try {
+            execute(job, handle, submitted);
+        } catch (RejectedExecutionException e) {
+            rejected.inc();
+            Logger.e("Save queue is full, snap not saved.");
+            handle.complete(null);
+        }
+        queueDepth.set(executor.getQueue().size());
+        submitTimer.stop(submitted);
+        return handle;
+    }
+
+    private void execute(final Job job, final SaveHandle handle, final long submitted) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long started = System.nanoTime();
+                waitTimer.record(started - submitted, 0);
+                queueDepth.set(executor.getQueue().size());
+                String path = null;
+                try {
+                    path = job.save();
+                } catch (Throwable t) {
+                    Logger.e("Error occurred while saving.", t);
+                } finally {
+                    saveTimer.stop(started);
+                }
+                handle.complete(path);
+                AfterSave housekeeping = afterSave;
+                if (path != null && housekeeping != null) {
+                    try {
+                        housekeeping.afterSave(path);
+                    } catch (Throwable t) {
+                        Logger.e("Error occurred after saving.", t);
+                    }
+                }
+                if (saveTimer.getCount() % LOG_INTERVAL == 0 && Logger.isLoggable(Logger.DEBUG))
+                    Logger.d("Save metrics\n", Metrics.dump());
+            }
+        });
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Don't compete with Snapchat's UI thread for the CPU
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Keepchat-save-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
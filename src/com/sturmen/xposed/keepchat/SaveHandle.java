@@ -0,0 +1,89 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Completion handle for a save submitted to the {@link SaveEngine}.
+ * <p>
+ * The hooks that need the result (showImage(), showVideo(), markViewed()) run on Snapchat's UI
+ * thread, so instead of blocking on the result they register a {@link Callback} which is
+ * delivered on the main thread as soon as the save has finished.
+ */
+final class SaveHandle {
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    interface Callback {
+        /**
+         * Called on the main thread once the save has finished.
+         *
+         * @param path The path of the saved file as recorded in the {@link SaveIndex}, or
+         *             {@code null} if saving failed
+         */
+        void onSaved(String path);
+    }
+
+    private final List<Callback> callbacks = new ArrayList<Callback>(2);
+    private boolean done;
+    private String path;
+
+    /** Completes the handle and dispatches all registered callbacks to the main thread. */
+    void complete(String path) {
+        final List<Callback> pending;
+        synchronized (this) {
+            if (done)
+                return;
+            this.path = path;
+            done = true;
+            pending = new ArrayList<Callback>(callbacks);
+            callbacks.clear();
+        }
+        for (Callback callback : pending)
+            dispatch(callback, path);
+    }
+
+    /**
+     * Registers a callback for the result of the save. If the save has already finished, the
+     * callback is posted to the main thread right away.
+     */
+    void whenDone(Callback callback) {
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        dispatch(callback, path);
+    }
+
+    private static void dispatch(final Callback callback, final String path) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSaved(path);
+            }
+        });
+    }
+}
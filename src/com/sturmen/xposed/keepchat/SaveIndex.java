@@ -0,0 +1,645 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Index of all snaps saved in the keepchat folder, so that re-viewed and replayed snaps are
+ * recognized without looking at the file system.
+ * <p>
+ * The index is an append-only journal of tab separated lines
+ * {@code sender timestamp type snapId origin hash size path} in the keepchat folder, which is read
+ * into memory on first use. Snaps are matched by their id where Snapchat provides one, otherwise by
+ * sender, timestamp and type. The {@link #hashFile content hash} and size find media that was saved
+ * already under another snap, e.g. when it is sent again. If the journal is missing or corrupt, it is rebuilt from the file
+ * names in the keepchat folder and its per-sender or per-month subfolders (see {@link PathPlanner}).
+ * Those only carry the timestamp to the second and the sanitized sender name, so rebuilt entries
+ * (origin {@code rebuilt}) are matched at that resolution and have no hash. A torn last line, as left behind when
+ * Snapchat is killed in the middle of an append, is cut off instead.
+ * <p>
+ * Removed snaps are recorded as {@code - path} lines. The journal is compacted on load once it
+ * holds more removed than live entries. The index keeps the entries in save order and tracks their
+ * total size, so the {@link RetentionManager} never has to list the keepchat folder.
+ * <p>
+ * Saving a snap takes a while between choosing its file and recording it, so a save first
+ * {@link #reserve reserves} its file and the snap, and {@link #add adds} or {@link #release releases}
+ * the reservation when done. Two snaps from the same second thus never get the same file, and the
+ * same snap is never saved twice at the same time.
+ * <p>
+ * All methods but {@link #peek} are synchronized. Inside Snapchat, they are only called from the
+ * save engine's workers; the hooks only peek, which never blocks. Other processes, like the
+ * browser, use a {@link #readOnly(File) read-only} index, which never writes the journal, as
+ * Snapchat may be appending to it at the same time.
+ */
+final class SaveIndex {
+    static final String JOURNAL_NAME = ".index";
+    private static final String TOMBSTONE = "-";
+    private static final String COLUMN_SEPARATOR = "\t";
+    private static final String ORIGIN_SAVED = "saved";
+    private static final String ORIGIN_REBUILT = "rebuilt";
+    /** Number of bytes hashed from the beginning and the end of each file */
+    private static final int HASH_SAMPLE = 64 * 1024;
+
+    /** A saved snap. */
+    static final class Entry {
+        final String sender;
+        final long timestamp;
+        final String type;
+        final String snapId;
+        /** Whether the entry was rebuilt from the file name, so its timestamp is only to the second */
+        final boolean rebuilt;
+        /** The {@link #hashFile content hash}, 0 if unknown */
+        final long hash;
+        final long size;
+        final String path;
+
+        Entry(String sender, long timestamp, String type, String snapId, boolean rebuilt, long hash, long size, String path) {
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.snapId = snapId;
+            this.rebuilt = rebuilt;
+            this.hash = hash;
+            this.size = size;
+            this.path = path;
+        }
+    }
+
+    /**
+     * The file and snap reserved by {@link #reserve}, or the entry of the snap if it was saved
+     * already.
+     */
+    static final class Reservation {
+        /** The entry of the snap if it was saved already, nothing is reserved then */
+        final Entry saved;
+        final String sender;
+        final long timestamp;
+        final String type;
+        final String snapId;
+        /** The file to save the snap to, {@code null} if it was saved already */
+        final File file;
+        private final String key;
+        /** Guarded by the index */
+        private boolean released;
+
+        private Reservation(Entry saved) {
+            this(saved, null, 0, null, null, null, null);
+            released = true;
+        }
+
+        private Reservation(Entry saved, String sender, long timestamp, String type, String snapId, File file, String key) {
+            this.saved = saved;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.snapId = snapId;
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    private final File dir;
+    private final File journal;
+    private final boolean readOnly;
+    /** Set once the entries have been loaded; {@link #peek} reads the maps below without the lock */
+    private volatile boolean loaded;
+    /** Entries by {@link #key(String, long, String)} */
+    private Map<String, Entry> entries;
+    /** Entries that have a snap id, by {@link #idKey(String, String)} */
+    private Map<String, Entry> bySnapId;
+    /** Entries rebuilt from file names, by {@link #coarseKey(String, long, String)} */
+    private Map<String, Entry> coarseEntries;
+    /** Entries with a hash, by {@link #contentKey(long, long)} */
+    private Map<String, Entry> byContent;
+    /** Entries by path, oldest first */
+    private LinkedHashMap<String, Entry> byPath;
+    private long totalBytes;
+    /** Keys of the snaps being saved, see {@link #reserve} */
+    private final Set<String> inFlight = new HashSet<String>();
+    /** Paths reserved by saves in progress */
+    private final Set<String> reservedPaths = new HashSet<String>();
+
+    /** @param dir The keepchat folder */
+    SaveIndex(File dir) {
+        this(dir, false);
+    }
+
+    private SaveIndex(File dir, boolean readOnly) {
+        this.dir = dir;
+        this.journal = new File(dir, JOURNAL_NAME);
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @param dir The keepchat folder
+     * @return An index that only reads the journal. It is neither compacted, cut nor rebuilt on
+     *         disk, and the index can't be changed.
+     */
+    static SaveIndex readOnly(File dir) {
+        return new SaveIndex(dir, true);
+    }
+
+    /**
+     * Reserves the file to save a snap to. If the same snap is being saved by another worker, this
+     * waits for that save to finish, so the snap is only saved once. The reservation must be
+     * completed with {@link #add} or {@link #release}.
+     *
+     * @param type The media type, i.e. "image" or "video"
+     * @param snapId The snap's id, or {@code null} if it's unknown
+     * @param planned The file the snap would be saved to. If its path is already taken by another
+     *                snap (e.g. one from the same sender within the same second), the first free
+     *                variant {@code name_2.suffix}, {@code name_3.suffix}, ... is reserved instead.
+     * @return The reservation, whose {@link Reservation#saved} is set if the snap was saved already
+     */
+    synchronized Reservation reserve(String sender, long timestamp, String type, String snapId, File planned)
+            throws InterruptedException {
+        checkWritable();
+        ensureLoaded();
+        String key = snapId != null ? idKey(snapId, type) : key(sender, timestamp, type);
+        while (true) {
+            Entry saved = find(sender, timestamp, type, snapId);
+            if (saved != null)
+                return new Reservation(saved);
+            if (!inFlight.contains(key))
+                break;
+            wait();
+        }
+        File file = uniqueFile(planned);
+        inFlight.add(key);
+        reservedPaths.add(file.getPath());
+        return new Reservation(null, sender, timestamp, type, snapId, file, key);
+    }
+
+    /**
+     * Looks a snap up without taking the lock or loading the index, so it can be called on
+     * Snapchat's thread. It may miss a snap that is being added or removed right now.
+     *
+     * @param type The media type, i.e. "image" or "video"
+     * @param snapId The snap's id, or {@code null} if it's unknown
+     * @return The entry of the snap if it is known to be saved, {@code null} if it isn't or the
+     *         index hasn't been loaded yet
+     */
+    Entry peek(String sender, long timestamp, String type, String snapId) {
+        if (!loaded)
+            return null;
+        return find(sender, timestamp, type, snapId);
+    }
+
+    /** Loads the index ahead of the first save, so that {@link #peek} finds the saved snaps. */
+    synchronized void preload() {
+        ensureLoaded();
+    }
+
+    /**
+     * @param hash The {@link #hashFile content hash} of the media
+     * @return The entry of a snap saved with the same content, or {@code null} if there is none
+     */
+    synchronized Entry findContent(long hash, long size) {
+        ensureLoaded();
+        return hash != 0 ? byContent.get(contentKey(hash, size)) : null;
+    }
+
+    /**
+     * Records a newly saved snap, appends it to the journal and releases its reservation.
+     *
+     * @param hash The {@link #hashFile content hash} of the saved file
+     */
+    synchronized Entry add(Reservation reservation, long hash) throws IOException {
+        checkWritable();
+        ensureLoaded();
+        try {
+            File file = reservation.file;
+            Entry entry = new Entry(reservation.sender, reservation.timestamp, reservation.type,
+                    reservation.snapId, false, hash, file.length(), file.getPath());
+            put(entry);
+            append(format(entry));
+            return entry;
+        } finally {
+            release(reservation);
+        }
+    }
+
+    /** Gives up a reservation, e.g. because saving failed. Does nothing if it was added already. */
+    synchronized void release(Reservation reservation) {
+        if (reservation.released)
+            return;
+        reservation.released = true;
+        inFlight.remove(reservation.key);
+        reservedPaths.remove(reservation.file.getPath());
+        notifyAll();
+    }
+
+    /** Removes a snap, e.g. one deleted by the {@link RetentionManager}, from the index. */
+    synchronized void remove(Entry entry) throws IOException {
+        checkWritable();
+        ensureLoaded();
+        if (removeFromMemory(entry.path))
+            append(TOMBSTONE + COLUMN_SEPARATOR + clean(entry.path) + "\n");
+    }
+
+    /** @return The entry saved first, or {@code null} if the index is empty. */
+    synchronized Entry oldest() {
+        ensureLoaded();
+        return byPath.isEmpty() ? null : byPath.values().iterator().next();
+    }
+
+    /** @return A snapshot of all saved snaps, newest first. */
+    synchronized List<Entry> entries() {
+        ensureLoaded();
+        List<Entry> snapshot = new ArrayList<Entry>(byPath.values());
+        Collections.reverse(snapshot);
+        return snapshot;
+    }
+
+    /** @return The number of saved snaps. */
+    synchronized int size() {
+        ensureLoaded();
+        return byPath.size();
+    }
+
+    /** @return The size of all saved snaps in bytes. */
+    synchronized long totalBytes() {
+        ensureLoaded();
+        return totalBytes;
+    }
+
+    private void checkWritable() {
+        if (readOnly)
+            throw new IllegalStateException("The save index is read-only");
+    }
+
+    /** @return The entry of the snap, or {@code null} if it hasn't been saved yet */
+    private Entry find(String sender, long timestamp, String type, String snapId) {
+        Entry entry = snapId != null ? bySnapId.get(idKey(snapId, type)) : null;
+        if (entry == null)
+            entry = entries.get(key(sender, timestamp, type));
+        if (entry == null && !coarseEntries.isEmpty())
+            entry = coarseEntries.get(coarseKey(sender, timestamp, type));
+        return entry;
+    }
+
+    /** @return The given file, or its first variant that is neither saved nor reserved. */
+    private File uniqueFile(File file) {
+        if (isFree(file))
+            return file;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String suffix = dot < 0 ? "" : name.substring(dot);
+        for (int i = 2; ; i++) {
+            File candidate = new File(file.getParentFile(), base + "_" + i + suffix);
+            if (isFree(candidate))
+                return candidate;
+        }
+    }
+
+    private boolean isFree(File file) {
+        String path = file.getPath();
+        return !byPath.containsKey(path) && !reservedPaths.contains(path);
+    }
+
+    private void put(Entry entry) {
+        removeFromMemory(entry.path);
+        entries.put(key(entry.sender, entry.timestamp, entry.type), entry);
+        if (entry.snapId != null)
+            bySnapId.put(idKey(entry.snapId, entry.type), entry);
+        // Rebuilt entries only have a timestamp to the second
+        if (entry.rebuilt)
+            coarseEntries.put(coarseKey(entry.sender, entry.timestamp, entry.type), entry);
+        if (entry.hash != 0)
+            byContent.put(contentKey(entry.hash, entry.size), entry);
+        byPath.put(entry.path, entry);
+        totalBytes += entry.size;
+    }
+
+    /** @return Whether there was an entry with that path. */
+    private boolean removeFromMemory(String path) {
+        Entry entry = byPath.remove(path);
+        if (entry == null)
+            return false;
+        String key = key(entry.sender, entry.timestamp, entry.type);
+        if (entries.get(key) == entry)
+            entries.remove(key);
+        if (entry.snapId != null) {
+            String idKey = idKey(entry.snapId, entry.type);
+            if (bySnapId.get(idKey) == entry)
+                bySnapId.remove(idKey);
+        }
+        String coarseKey = coarseKey(entry.sender, entry.timestamp, entry.type);
+        if (coarseEntries.get(coarseKey) == entry)
+            coarseEntries.remove(coarseKey);
+        String contentKey = contentKey(entry.hash, entry.size);
+        if (byContent.get(contentKey) == entry)
+            byContent.remove(contentKey);
+        totalBytes -= entry.size;
+        return true;
+    }
+
+    private void append(String line) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8");
+        try {
+            out.write(line);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        entries = new ConcurrentHashMap<String, Entry>();
+        bySnapId = new ConcurrentHashMap<String, Entry>();
+        coarseEntries = new ConcurrentHashMap<String, Entry>();
+        byContent = new HashMap<String, Entry>();
+        byPath = new LinkedHashMap<String, Entry>();
+        totalBytes = 0;
+        if (journal.exists()) {
+            try {
+                load();
+                loaded = true;
+                return;
+            } catch (Exception e) {
+                Logger.e("Save index is corrupt, rebuilding it. " + e);
+                entries.clear();
+                bySnapId.clear();
+                coarseEntries.clear();
+                byContent.clear();
+                byPath.clear();
+                totalBytes = 0;
+            }
+        }
+        rebuild();
+        loaded = true;
+    }
+
+    /**
+     * Reads the journal. A malformed last line is what's left of an interrupted append, or one
+     * that is still in progress: it is ignored and, unless read-only, cut off, so the next append
+     * starts on a clean line.
+     *
+     * @throws IOException If the journal can't be read or a line before the last is malformed
+     */
+    private void load() throws IOException {
+        byte[] data = readJournal();
+        int lines = 0;
+        int start = 0;
+        while (start < data.length) {
+            int end = start;
+            while (end < data.length && data[end] != '\n')
+                end++;
+            String line = new String(data, start, end - start, "UTF-8");
+            // Without its newline, even a line that parses may be missing characters
+            if (end == data.length || !parseLine(line)) {
+                if (end < data.length - 1)
+                    throw new IOException("Malformed index line: " + line);
+                if (!readOnly) {
+                    Logger.e("Cutting off the torn last line of the save index: " + line);
+                    truncateJournal(start);
+                }
+                break;
+            }
+            lines++;
+            start = end + 1;
+        }
+        // Most lines are about removed snaps, rewrite the journal with the live ones only
+        if (!readOnly && lines > 2 * byPath.size() + 16) {
+            try {
+                writeJournal();
+            } catch (IOException e) {
+                Logger.e("Could not compact the save index. " + e);
+            }
+        }
+    }
+
+    /**
+     * Applies a journal line to the entries in memory.
+     *
+     * @return {@code false} if the line is malformed
+     */
+    private boolean parseLine(String line) {
+        String[] c = line.split(COLUMN_SEPARATOR, -1);
+        if (c.length == 2 && c[0].equals(TOMBSTONE)) {
+            removeFromMemory(c[1]);
+            return true;
+        }
+        if (c.length != 8)
+            return false;
+        try {
+            put(new Entry(c[0], Long.parseLong(c[1]), c[2], c[3].length() == 0 ? null : c[3],
+                    c[4].equals(ORIGIN_REBUILT), Long.parseLong(c[5]), Long.parseLong(c[6]), c[7]));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private byte[] readJournal() throws IOException {
+        FileInputStream in = new FileInputStream(journal);
+        try {
+            byte[] data = new byte[(int) journal.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+            return read == data.length ? data : Arrays.copyOf(data, read);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void truncateJournal(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Recreates the index, and unless read-only the journal, from the file names in the keepchat folder. */
+    private void rebuild() {
+        List<Entry> found = new ArrayList<Entry>();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US);
+        scan(dir, dateFormat, found, true);
+        // Keep the save order, i.e. oldest first
+        Collections.sort(found, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.timestamp < b.timestamp ? -1 : (a.timestamp == b.timestamp ? 0 : 1);
+            }
+        });
+        for (Entry entry : found)
+            put(entry);
+        if (readOnly)
+            return;
+        try {
+            writeJournal();
+            Logger.i("Rebuilt save index, entries: ", byPath.size());
+        } catch (IOException e) {
+            Logger.e("Could not write the save index. " + e);
+        }
+    }
+
+    /**
+     * Collects the saved snaps in the folder. Subfolders are only looked into on the top level,
+     * which is as deep as the {@link PathPlanner} shards; hidden ones like the temp folder are
+     * skipped.
+     */
+    private static void scan(File folder, SimpleDateFormat dateFormat, List<Entry> found, boolean topLevel) {
+        File[] files = folder.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (topLevel && !file.getName().startsWith("."))
+                    scan(file, dateFormat, found, false);
+                continue;
+            }
+            Entry entry = parseFileName(file, dateFormat);
+            if (entry != null)
+                found.add(entry);
+        }
+    }
+
+    /**
+     * Writes a journal of the live entries next to the old one and swaps them, so we never end
+     * up with half a journal.
+     */
+    private void writeJournal() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : byPath.values())
+            sb.append(format(entry));
+        File tmp = new File(dir, JOURNAL_NAME + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write(sb.toString());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(journal))
+            throw new IOException("Could not rename " + tmp + " to " + journal);
+    }
+
+    /** Parses {@code <sender>_yyyy-MM-dd_HH-mm-ss[_n].<suffix>}, returns {@code null} for other files. */
+    private static Entry parseFileName(File file, SimpleDateFormat dateFormat) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (name.startsWith(".") || dot < 0 || !file.isFile())
+            return null;
+        String suffix = name.substring(dot + 1);
+        String type = suffix.equals("mp4") ? "video" : "image";
+        String base = name.substring(0, dot);
+        // Strip a collision counter
+        int underscore = base.lastIndexOf('_');
+        if (underscore > 0 && base.length() - underscore <= 4 && base.substring(underscore + 1).matches("\\d+"))
+            base = base.substring(0, underscore);
+        // The date part has a fixed length of 19 characters, preceded by an underscore
+        if (base.length() < 21 || base.charAt(base.length() - 20) != '_')
+            return null;
+        String sender = base.substring(0, base.length() - 20);
+        long timestamp;
+        try {
+            timestamp = dateFormat.parse(base.substring(base.length() - 19)).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+        return new Entry(sender, timestamp, type, null, true, 0, file.length(), file.getPath());
+    }
+
+    private static String format(Entry entry) {
+        return clean(entry.sender) + COLUMN_SEPARATOR + entry.timestamp + COLUMN_SEPARATOR + entry.type
+                + COLUMN_SEPARATOR + (entry.snapId == null ? "" : clean(entry.snapId))
+                + COLUMN_SEPARATOR + (entry.rebuilt ? ORIGIN_REBUILT : ORIGIN_SAVED)
+                + COLUMN_SEPARATOR + entry.hash + COLUMN_SEPARATOR + entry.size
+                + COLUMN_SEPARATOR + clean(entry.path) + "\n";
+    }
+
+    private static String clean(String s) {
+        return s.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    private static String key(String sender, long timestamp, String type) {
+        return sender + '|' + timestamp + '|' + type;
+    }
+
+    private static String idKey(String snapId, String type) {
+        return snapId + '|' + type;
+    }
+
+    /** Rebuilt entries only know the sender's name from the file name, so compare it sanitized. */
+    private static String coarseKey(String sender, long timestamp, String type) {
+        return PathPlanner.sanitize(sender) + '|' + timestamp / 1000 + '|' + type;
+    }
+
+    private static String contentKey(long hash, long size) {
+        return Long.toString(hash) + '|' + size;
+    }
+
+    /**
+     * Computes a cheap content hash: the CRC32 of the file size and the first and last
+     * {@link #HASH_SAMPLE} bytes. Good enough to tell snaps apart without reading whole videos.
+     */
+    static long hashFile(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long length = in.length();
+            crc.update((int) (length ^ (length >>> 32)));
+            byte[] buf = new byte[(int) Math.min(HASH_SAMPLE, length)];
+            in.readFully(buf);
+            crc.update(buf);
+            if (length > HASH_SAMPLE) {
+                in.seek(length - HASH_SAMPLE);
+                in.readFully(buf);
+                crc.update(buf);
+            }
+        } finally {
+            in.close();
+        }
+        // 0 stands for an unknown hash
+        long hash = crc.getValue();
+        return hash != 0 ? hash : 1;
+    }
+}
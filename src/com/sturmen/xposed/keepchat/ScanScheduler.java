@@ -0,0 +1,176 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects saved files and hands them to the media scanner in batches, so that going through a
+ * long story opens one scanner connection instead of one per snap. The success toasts are batched
+ * the same way ("Saved 7 snaps"). Files saved before they are shown, i.e. eagerly, are scanned
+ * {@link #addQuietly quietly} right away, and only get their toast once they are shown.
+ * <p>
+ * A batch is flushed {@link #DEBOUNCE_MILLIS} after the last file was added, as soon as it holds
+ * {@link #MAX_BATCH} files, or when {@link #flush()} is called, e.g. when Snapchat goes to the
+ * background. All methods must be called on the main thread.
+ */
+final class ScanScheduler {
+    static final long DEBOUNCE_MILLIS = 1500;
+    static final int MAX_BATCH = 16;
+    /** How many quietly scanned files are remembered, so they aren't scanned again when shown */
+    private static final int RECENT_SCANS = 64;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<String> paths = new ArrayList<String>();
+    private final List<String> mimeTypes = new ArrayList<String>();
+    /** The files to report in the next toast */
+    private final List<String> toasts = new ArrayList<String>();
+    private final Set<String> quietlyScanned = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_SCANS;
+        }
+    });
+    private final Metrics.Counter scannedFiles = Metrics.counter("scan.files");
+    private final Metrics.Counter connections = Metrics.counter("scan.connections");
+    private final Metrics.Timer scanTimer = Metrics.timer("scan.request");
+    private volatile int toastMode;
+    private Context context;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /** @param toastMode The toast duration, or a negative value for no toasts */
+    ScanScheduler(int toastMode) {
+        this.toastMode = toastMode;
+    }
+
+    /** @param toastMode The toast duration, or a negative value for no toasts */
+    void setToastMode(int toastMode) {
+        this.toastMode = toastMode;
+    }
+
+    /**
+     * Queues a saved file for scanning and its success toast.
+     *
+     * @param context Any context of Snapchat, only its application context is kept
+     * @param path The saved file
+     */
+    void add(Context context, String path) {
+        toasts.add(path);
+        if (!quietlyScanned.contains(path)) {
+            paths.add(path);
+            mimeTypes.add(mimeType(path));
+        }
+        schedule(context);
+    }
+
+    /**
+     * Queues a saved file for scanning without a toast, for files saved before they are shown.
+     * When the file is {@link #add added} later, it only gets its toast.
+     *
+     * @param context Any context of Snapchat, only its application context is kept
+     * @param path The saved file
+     */
+    void addQuietly(Context context, String path) {
+        if (!quietlyScanned.add(path))
+            return;
+        paths.add(path);
+        mimeTypes.add(mimeType(path));
+        schedule(context);
+    }
+
+    private void schedule(Context context) {
+        this.context = context.getApplicationContext();
+        handler.removeCallbacks(flushRunnable);
+        if (Math.max(paths.size(), toasts.size()) >= MAX_BATCH)
+            flush();
+        else
+            handler.postDelayed(flushRunnable, DEBOUNCE_MILLIS);
+    }
+
+    /** Scans all queued files with a single scanner connection and shows one toast for them. */
+    void flush() {
+        handler.removeCallbacks(flushRunnable);
+        scan();
+        if (toasts.isEmpty())
+            return;
+        int count = toasts.size();
+        String toastText = count == 1 ? "Saved " + (toasts.get(0).endsWith(".mp4") ? "video" : "image") + " to " + toasts.get(0)
+                : "Saved " + count + " snaps";
+        toasts.clear();
+        //construct the toast notification
+        if (toastMode >= 0)
+            Toast.makeText(context, toastText, toastMode).show();
+    }
+
+    private void scan() {
+        if (paths.isEmpty())
+            return;
+        final int count = paths.size();
+        String[] batch = paths.toArray(new String[count]);
+        try {
+            Logger.d("MediaScanner running, files: ", count);
+            // Run MediaScanner on the files, so they show up in Gallery instantly
+            long start = scanTimer.start();
+            MediaScannerConnection.scanFile(context, batch, mimeTypes.toArray(new String[count]),
+                    new MediaScannerConnection.OnScanCompletedListener() {
+                        public void onScanCompleted(String path, Uri uri) {
+                            if (uri == null)
+                                Logger.e("Unknown error occurred while trying to run MediaScanner on " + path);
+                        }
+                    });
+            scanTimer.stop(start);
+            connections.inc();
+            scannedFiles.add(count);
+            Logger.d("MediaScanner connections saved so far: ", scannedFiles.get() - connections.get());
+        } catch (Exception e) {
+            Logger.e("Error occurred while trying to run MediaScanner", e);
+        }
+        paths.clear();
+        mimeTypes.clear();
+    }
+
+    private static String mimeType(String path) {
+        if (path.endsWith(".mp4"))
+            return "video/mp4";
+        if (path.endsWith(".png"))
+            return "image/png";
+        if (path.endsWith(".webp"))
+            return "image/webp";
+        return "image/jpeg";
+    }
+}
@@ -21,12 +21,25 @@ package com.sturmen.xposed.keepchat;
  */
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
+import android.util.Log;
 import android.preference.ListPreference;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+
 public class SettingsActivity extends Activity {
+    private static final String TAG = "Keepchat";
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -47,7 +60,28 @@ public class SettingsActivity extends Activity {
             addPreferencesFromResource(R.xml.preferences);
             updateListSummary("pref_imageSaving");
             updateListSummary("pref_videoSaving");
+            updateListSummary("pref_imageFormat");
+            updateListSummary("pref_imageQuality");
+            updateListSummary("pref_sharding");
+            updateListSummary("pref_retentionMaxMegabytes");
+            updateListSummary("pref_retentionMaxCount");
+            updateListSummary("pref_retentionMaxAgeDays");
             updateListSummary("pref_toast");
+            updateListSummary("pref_logLevel");
+            findPreference("pref_diagnostics").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    showDiagnostics();
+                    return true;
+                }
+            });
+            findPreference("pref_export").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    startExport();
+                    return true;
+                }
+            });
         }
 
         @Override
@@ -63,7 +97,9 @@ public class SettingsActivity extends Activity {
         }
 
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-            if (key.equals("pref_imageSaving") || key.equals("pref_videoSaving") || key.equals("pref_toast")) {
+            if (key.equals("pref_imageSaving") || key.equals("pref_videoSaving") || key.equals("pref_toast")
+                    || key.equals("pref_imageFormat") || key.equals("pref_imageQuality") || key.equals("pref_sharding")
+                    || key.equals("pref_logLevel") || key.startsWith("pref_retention")) {
                 updateListSummary(key);
             }
         }
@@ -73,5 +109,110 @@ public class SettingsActivity extends Activity {
             // Set summary to be the user-description for the selected value
             savePref.setSummary(savePref.getEntry());
         }
+
+        /**
+         * Shows the metrics Keepchat writes from within Snapchat whenever it goes to the background.
+         */
+        private void showDiagnostics() {
+            File file = new File(Environment.getExternalStorageDirectory().toString() + "/keepchat", Logger.DIAGNOSTICS_NAME);
+            String text;
+            try {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    byte[] buf = new byte[(int) file.length()];
+                    int read = 0;
+                    while (read < buf.length) {
+                        int n = in.read(buf, read, buf.length - read);
+                        if (n < 0)
+                            break;
+                        read += n;
+                    }
+                    text = new String(buf, 0, read, "UTF-8");
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                text = "No statistics recorded yet. Open some snaps and come back.";
+            }
+            new AlertDialog.Builder(getActivity()).setTitle("Diagnostics").setMessage(text).show();
+        }
+
+        /**
+         * Exports the keepchat folder into a single archive on the SD card in the background.
+         * Cancelling the progress dialog pauses the export, starting it again resumes it.
+         */
+        private void startExport() {
+            final File dir = new File(Environment.getExternalStorageDirectory().toString() + "/keepchat");
+            final File archive = new File(Environment.getExternalStorageDirectory(), ArchiveExporter.ARCHIVE_NAME);
+            final ProgressDialog progress = new ProgressDialog(getActivity());
+            progress.setTitle("Exporting snaps");
+            progress.setMessage("Writing " + archive);
+            progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progress.setCancelable(true);
+
+            final AsyncTask<Void, Long, Object> task = new AsyncTask<Void, Long, Object>() {
+                @Override
+                protected Object doInBackground(Void... params) {
+                    try {
+                        return new ArchiveExporter(dir, archive).export(new ArchiveExporter.Listener() {
+                            @Override
+                            public boolean onProgress(int done, int total, long bytes) {
+                                publishProgress((long) done, (long) total, bytes);
+                                return !isCancelled();
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log.e(TAG, "Export failed", e);
+                        return e;
+                    }
+                }
+
+                @Override
+                protected void onProgressUpdate(Long... values) {
+                    progress.setMax(values[1].intValue());
+                    progress.setProgress(values[0].intValue());
+                    progress.setMessage("Writing " + archive + "\n" + values[2] / (1024 * 1024) + " MB written");
+                }
+
+                @Override
+                protected void onPostExecute(Object result) {
+                    progress.dismiss();
+                    showExportResult(result);
+                }
+
+                @Override
+                protected void onCancelled(Object result) {
+                    showExportResult(result);
+                }
+            };
+            progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    task.cancel(false);
+                }
+            });
+            progress.show();
+            task.execute();
+        }
+
+        private void showExportResult(Object result) {
+            String text;
+            if (result instanceof ArchiveExporter.Result) {
+                ArchiveExporter.Result r = (ArchiveExporter.Result) result;
+                String rate = String.format(Locale.US, "%.1f MB/s", r.megabytesPerSecond());
+                Log.i(TAG, "Exported " + r.files + "/" + r.total + " snaps, " + r.bytes + " bytes at " + rate
+                        + (r.resumed ? ", resumed" : ""));
+                if (r.complete)
+                    text = "Exported " + r.total + " snaps to " + r.archive + "\n\n"
+                            + r.bytes / (1024 * 1024) + " MB written at " + rate + ".";
+                else
+                    text = "Export paused after " + r.files + " of " + r.total + " snaps. "
+                            + "Export again to continue where it stopped.";
+            } else {
+                text = "Export failed: " + result + "\n\nExport again to continue where it stopped.";
+            }
+            if (isAdded())
+                new AlertDialog.Builder(getActivity()).setTitle("Export").setMessage(text).show();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,254 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import de.robv.android.xposed.callbacks.XC_LoadPackage.LoadPackageParam;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Resolves the Snapchat classes and methods Keepchat needs exactly once, in handleLoadPackage(),
+ * and keeps the resulting {@link Method}s, so the hooks never have to look anything up by name.
+ * <p>
+ * Every target is first looked up by its well-known name. If that fails (e.g. because Proguard
+ * renamed it), the target class is searched for the single public method with the expected
+ * signature. Optional targets whose signature is too common to be told apart, like the snap id,
+ * the decrypted bytes and the hook for eager saving, are only looked up by name. Note that {@link Class#getMethods()} is used on
+ * purpose, because some targets, like getTimestamp(), are inherited from the Snap class and thus
+ * invisible to {@code XposedHelpers.callMethod()}.
+ * <p>
+ * The resolved mapping is stored in Snapchat's data directory, keyed by the identity of the
+ * installed Snapchat APK, so later process starts skip the search until Snapchat is updated. The
+ * time spent resolving is recorded as {@code accessors.resolve}, the time spent in accessor calls
+ * as {@code accessors.invoke}.
+ */
+final class SnapAccessors {
+    static final String RECEIVED_SNAP = "com.snapchat.android.model.ReceivedSnap";
+    static final String SNAP_VIEW = "com.snapchat.android.ui.SnapView";
+    private static final String CACHE_NAME = "keepchat_accessors.properties";
+    private static final String CACHE_VERSION_KEY = "apk";
+
+    private static final Metrics.Timer resolveTimer = Metrics.timer("accessors.resolve");
+    private static final Metrics.Timer invokeTimer = Metrics.timer("accessors.invoke");
+
+    final Method getSender;
+    final Method getTimestamp;
+    /** May be {@code null}, not every Snapchat version has snap ids */
+    final Method getId;
+    /** May be {@code null}, see {@link ImageEncoder#MODE_ORIGINAL} */
+    final Method getRawBytes;
+    final Method getImageBitmap;
+    final Method getVideoUri;
+    final Method markViewed;
+    final Method wasScreenshotted;
+    final Method showImage;
+    final Method showVideo;
+    final Method getContext;
+    /**
+     * Called with {@code true} once a received snap has been downloaded and decrypted, hooked for
+     * eager saving. May be {@code null}, eager saving is off then.
+     */
+    final Method setLoaded;
+    /** May be {@code null}, eager saving is off then */
+    final Method isVideo;
+
+    private final ClassLoader classLoader;
+    private final Properties cached;
+    private final Properties resolved = new Properties();
+
+    private SnapAccessors(ClassLoader classLoader, Properties cached) throws ClassNotFoundException {
+        this.classLoader = classLoader;
+        this.cached = cached;
+        Class<?> snapClass = Class.forName(RECEIVED_SNAP, false, classLoader);
+        Class<?> viewClass = Class.forName(SNAP_VIEW, false, classLoader);
+        getSender = resolve("getSender", snapClass, String.class);
+        getTimestamp = resolve("getTimestamp", snapClass, long.class);
+        // A renamed getId() would be confused with getSender(), getDecryptedBytes() with other byte getters
+        getId = resolveByName("getId", snapClass, String.class);
+        getRawBytes = resolveByName("getDecryptedBytes", snapClass, byte[].class);
+        getImageBitmap = resolve("getImageBitmap", snapClass, Bitmap.class);
+        getVideoUri = resolve("getVideoUri", snapClass, String.class);
+        markViewed = resolve("markViewed", snapClass, void.class);
+        wasScreenshotted = resolve("wasScreenshotted", snapClass, boolean.class);
+        showImage = resolve("showImage", viewClass, void.class);
+        showVideo = resolve("showVideo", viewClass, void.class, Context.class);
+        getContext = resolve("getContext", viewClass, Context.class);
+        setLoaded = resolveByName("setIsLoaded", snapClass, void.class, boolean.class);
+        isVideo = resolveByName("isVideo", snapClass, boolean.class);
+    }
+
+    /**
+     * Resolves all accessors for the Snapchat version being loaded, using the cached mapping of a
+     * previous start if it is still valid.
+     */
+    static SnapAccessors resolve(LoadPackageParam lpparam) throws ClassNotFoundException {
+        long start = resolveTimer.start();
+        File cacheFile = new File(lpparam.appInfo.dataDir, CACHE_NAME);
+        String apk = apkIdentity(lpparam);
+        Properties cached = new Properties();
+        if (cacheFile.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(cacheFile);
+                try {
+                    cached.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Logger.e("Could not read accessor cache. " + e);
+            }
+            if (!apk.equals(cached.getProperty(CACHE_VERSION_KEY)))
+                cached.clear();
+        }
+        boolean fromCache = !cached.isEmpty();
+        SnapAccessors accessors = new SnapAccessors(lpparam.classLoader, cached);
+        accessors.resolved.setProperty(CACHE_VERSION_KEY, apk);
+        if (!accessors.resolved.equals(cached)) {
+            try {
+                FileOutputStream out = new FileOutputStream(cacheFile);
+                try {
+                    accessors.resolved.store(out, "Keepchat accessors");
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                Logger.e("Could not write accessor cache. " + e);
+            }
+        }
+        resolveTimer.stop(start);
+        Logger.i("Resolved accessors " + (fromCache ? "from cache " : "") + "in "
+                + (System.nanoTime() - start) / 1000 + "us.");
+        return accessors;
+    }
+
+    String getSender(Object snap) throws Exception {
+        return (String) invoke(getSender, snap);
+    }
+
+    long getTimestamp(Object snap) throws Exception {
+        return (Long) invoke(getTimestamp, snap);
+    }
+
+    /** @return The snap's id, or {@code null} if it's unknown. */
+    String getId(Object snap) throws Exception {
+        return getId != null ? (String) invoke(getId, snap) : null;
+    }
+
+    /** @return The decrypted image bytes of the snap, or {@code null} if they aren't available. */
+    byte[] getRawBytes(Object snap) throws Exception {
+        return getRawBytes != null ? (byte[]) invoke(getRawBytes, snap) : null;
+    }
+
+    boolean isVideo(Object snap) throws Exception {
+        return (Boolean) invoke(isVideo, snap);
+    }
+
+    Context getContext(Object snapView) throws Exception {
+        return (Context) invoke(getContext, snapView);
+    }
+
+    private static Object invoke(Method method, Object target) throws Exception {
+        long start = invokeTimer.start();
+        try {
+            return method.invoke(target);
+        } finally {
+            invokeTimer.stop(start);
+        }
+    }
+
+    /**
+     * Finds a method by its cached location, its name or, failing that, by the signature if there
+     * is exactly one public method with that signature.
+     *
+     * @return The method, or {@code null} if it couldn't be found
+     */
+    private Method resolve(String name, Class<?> cls, Class<?> returnType, Class<?>... paramTypes) {
+        return resolve(name, cls, true, returnType, paramTypes);
+    }
+
+    /** Like {@link #resolve(String, Class, Class, Class[])}, but without the signature search. */
+    private Method resolveByName(String name, Class<?> cls, Class<?> returnType, Class<?>... paramTypes) {
+        return resolve(name, cls, false, returnType, paramTypes);
+    }
+
+    private Method resolve(String name, Class<?> cls, boolean bySignature, Class<?> returnType, Class<?>... paramTypes) {
+        Method method = fromCache(name, paramTypes);
+        if (method == null) {
+            try {
+                method = cls.getMethod(name, paramTypes);
+                if (method.getReturnType() != returnType)
+                    method = null;
+            } catch (NoSuchMethodException e) {
+                method = null;
+            }
+        }
+        if (method == null && bySignature)
+            method = findBySignature(cls, returnType, paramTypes);
+        if (method == null) {
+            Logger.e("Could not resolve " + cls.getName() + "." + name + "()");
+            return null;
+        }
+        method.setAccessible(true);
+        resolved.setProperty(name, method.getDeclaringClass().getName() + "#" + method.getName());
+        return method;
+    }
+
+    private Method fromCache(String name, Class<?>[] paramTypes) {
+        String location = cached.getProperty(name);
+        if (location == null)
+            return null;
+        int hash = location.indexOf('#');
+        try {
+            return Class.forName(location.substring(0, hash), false, classLoader)
+                    .getDeclaredMethod(location.substring(hash + 1), paramTypes);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Method findBySignature(Class<?> cls, Class<?> returnType, Class<?>[] paramTypes) {
+        Method match = null;
+        for (Method method : cls.getMethods()) {
+            if (method.getReturnType() != returnType || method.getDeclaringClass() == Object.class
+                    || !Arrays.equals(method.getParameterTypes(), paramTypes))
+                continue;
+            // Ambiguous, better not guess
+            if (match != null)
+                return null;
+            match = method;
+        }
+        return match;
+    }
+
+    /** @return A string that changes whenever the installed Snapchat APK changes. */
+    private static String apkIdentity(LoadPackageParam lpparam) {
+        File apk = new File(lpparam.appInfo.sourceDir);
+        return apk.getPath() + ":" + apk.length() + ":" + apk.lastModified();
+    }
+}
@@ -0,0 +1,242 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the state of every snap being saved or staged, so that several snaps can be in flight at the same
+ * time without the toast, media scan or Ask dialog firing for the wrong file.
+ * <p>
+ * Entries are keyed by the identity of the ReceivedSnap instance. They are created in the
+ * getImageBitmap()/getVideoUri() hooks, or when saving eagerly, as soon as the snap has been
+ * downloaded, and consumed in the markViewed() hook. The showImage() and showVideo() hooks of the
+ * SnapView don't know which snap they show, but they call the getters on their own thread. So
+ * they open a view frame with {@link #beginView()}, to which the getters attach their entry, and
+ * pick it up again with {@link #endView()}.
+ * <p>
+ * Lookups are plain {@link ConcurrentHashMap} reads and never block the UI thread. Entries that
+ * were never consumed expire after {@link #TTL_MILLIS}, or {@link #PREFETCHED_TTL_MILLIS} for those
+ * of eager saves, as snaps may well be opened long after they were downloaded. Staged entries are
+ * additionally limited to {@link #MAX_STAGED} and {@link #STAGED_TTL_MILLIS}, as they may keep a
+ * whole Bitmap or a staged video file alive; evicted and expired ones are discarded.
+ */
+final class SnapRegistry {
+    /** How long an entry survives without being consumed */
+    static final long TTL_MILLIS = 5 * 60 * 1000;
+    /** How long the entry of an eager save survives without being consumed */
+    static final long PREFETCHED_TTL_MILLIS = 60 * 60 * 1000;
+    /** How long a staged entry, which may hold a whole Bitmap, survives without being consumed */
+    static final long STAGED_TTL_MILLIS = 60 * 1000;
+    /** Maximum number of staged entries, the oldest ones are evicted first */
+    static final int MAX_STAGED = 4;
+    /** Minimum time between two sweeps for expired entries */
+    private static final long SWEEP_INTERVAL_MILLIS = 15 * 1000;
+
+    /**
+     * A save waiting for the user's confirmation. It owns the media it would save, as Snapchat may
+     * recycle its Bitmap or delete its video file before the user decides.
+     */
+    interface StagedSave {
+        /** Starts the save, called at most once. */
+        SaveHandle start();
+
+        /** Frees the media; the save won't be started. */
+        void discard();
+
+        /** @return An estimate of the bytes the save would write into the keepchat folder */
+        long estimatedBytes();
+    }
+
+    /**
+     * The save state of a single snap. In Ask mode, the save isn't started right away: the entry
+     * holds the staged save until the user decides, see {@link #isStaged()}.
+     */
+    static final class Entry {
+        final boolean isImage;
+        /** The save waiting for the user's confirmation, {@code null} unless staged, guarded by this */
+        private StagedSave staged;
+        final long created = SystemClock.uptimeMillis();
+        /** The running or finished save, {@code null} while staged */
+        volatile SaveHandle save;
+        /** Whether the save was started when the snap was downloaded, before it was viewed */
+        final boolean prefetched;
+        /** Set by the showImage()/showVideo() hooks, read in the markViewed() hook */
+        volatile Context context;
+
+        Entry(boolean isImage, SaveHandle save) {
+            this(isImage, save, false);
+        }
+
+        Entry(boolean isImage, SaveHandle save, boolean prefetched) {
+            this.isImage = isImage;
+            this.save = save;
+            this.prefetched = prefetched;
+            this.staged = null;
+        }
+
+        Entry(boolean isImage, StagedSave staged) {
+            this.isImage = isImage;
+            this.staged = staged;
+            this.prefetched = false;
+        }
+
+        synchronized boolean isStaged() {
+            return staged != null;
+        }
+
+        /**
+         * Takes the staged save to start it.
+         *
+         * @return The staged save, or {@code null} if it was discarded or taken already
+         */
+        synchronized StagedSave takeStaged() {
+            StagedSave taken = staged;
+            staged = null;
+            return taken;
+        }
+
+        /** Discards the staged save, unless it was taken already. */
+        void discardStaged() {
+            StagedSave taken = takeStaged();
+            if (taken != null)
+                taken.discard();
+        }
+    }
+
+    private final ConcurrentMap<SnapKey, Entry> entries = new ConcurrentHashMap<SnapKey, Entry>();
+    private final ThreadLocal<List<Entry>> viewFrames = new ThreadLocal<List<Entry>>();
+    private volatile long lastSweep = SystemClock.uptimeMillis();
+
+    /**
+     * Registers the save of a snap, replacing an older entry for the same snap, whose staged save
+     * is discarded. If a view frame is open on the calling thread, the entry is attached to it.
+     */
+    void register(Object snap, Entry entry) {
+        Entry replaced = entries.put(new SnapKey(snap), entry);
+        if (replaced != null && replaced != entry)
+            replaced.discardStaged();
+        List<Entry> frame = viewFrames.get();
+        if (frame != null)
+            frame.add(entry);
+        if (entry.isStaged())
+            evictStagedOverLimit();
+        sweepIfDue();
+    }
+
+    /** @return The entry for the given snap, or {@code null} if there is none. */
+    Entry get(Object snap) {
+        return entries.get(new SnapKey(snap));
+    }
+
+    /** Removes and returns the entry for the given snap, or {@code null} if there is none. */
+    Entry consume(Object snap) {
+        return entries.remove(new SnapKey(snap));
+    }
+
+    /** Opens a view frame on the calling thread, see {@link #endView()}. */
+    void beginView() {
+        viewFrames.set(new ArrayList<Entry>(1));
+    }
+
+    /**
+     * Closes the view frame of the calling thread.
+     *
+     * @return The entry registered last while the frame was open, or {@code null} if none was
+     */
+    Entry endView() {
+        List<Entry> frame = viewFrames.get();
+        viewFrames.remove();
+        if (frame == null || frame.isEmpty())
+            return null;
+        return frame.get(frame.size() - 1);
+    }
+
+    private void sweepIfDue() {
+        long now = SystemClock.uptimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL_MILLIS)
+            return;
+        lastSweep = now;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (now - entry.created > ttl(entry)) {
+                it.remove();
+                entry.discardStaged();
+            }
+        }
+    }
+
+    private static long ttl(Entry entry) {
+        if (entry.isStaged())
+            return STAGED_TTL_MILLIS;
+        return entry.prefetched ? PREFETCHED_TTL_MILLIS : TTL_MILLIS;
+    }
+
+    /** Drops the oldest staged entries until at most {@link #MAX_STAGED} are left. */
+    private void evictStagedOverLimit() {
+        while (true) {
+            int staged = 0;
+            Entry oldest = null;
+            SnapKey oldestKey = null;
+            for (Map.Entry<SnapKey, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                if (!entry.isStaged())
+                    continue;
+                staged++;
+                if (oldest == null || entry.created < oldest.created) {
+                    oldest = entry;
+                    oldestKey = e.getKey();
+                }
+            }
+            if (staged <= MAX_STAGED)
+                return;
+            if (entries.remove(oldestKey, oldest))
+                oldest.discardStaged();
+            Logger.d("Evicted staged snap, staged entries: ", staged - 1);
+        }
+    }
+
+    /** Compares snaps by identity, ReceivedSnap may well override equals(). */
+    private static final class SnapKey {
+        private final Object snap;
+
+        SnapKey(Object snap) {
+            this.snap = snap;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SnapKey && ((SnapKey) o).snap == snap;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(snap);
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+
+import de.robv.android.xposed.XposedBridge;
+
+import static com.sturmen.xposed.keepchat.Config.SAVE_ASK;
+import static com.sturmen.xposed.keepchat.Config.SAVE_AUTO;
+
+/**
+ * The saving half of the getter hooks. On Snapchat's thread, it only captures what the save of a
+ * snap needs, hands the save to the {@link SaveEngine}, or stages it in Ask mode, and registers it
+ * with the {@link SnapRegistry}. The jobs it builds then write the snap into the keepchat folder
+ * in the background.
+ * <p>
+ * Everything that needs a Context, i.e. the toasts, the Ask dialog and the media scanner, is left
+ * to {@link Keepchat}, whose hooks call this.
+ */
+final class SnapSaver {
+    private final SnapAccessors accessors;
+    private final SnapRegistry registry;
+    private final SaveEngine engine;
+    private final SaveIndex index;
+    private final AtomicCommitter committer;
+    private final MediaCopier mediaCopier;
+    /** Names the saved files, replaced when the folder layout changes */
+    private volatile PathPlanner pathPlanner;
+    /** Writes the images in the format chosen in the preferences, replaced when that changes */
+    private volatile ImageEncoder imageEncoder;
+    /** Time spent inside the getter hooks, i.e. the latency Keepchat adds to opening a snap */
+    private final Metrics.Timer imageHookTimer = Metrics.timer("hook.getImageBitmap");
+    private final Metrics.Timer videoHookTimer = Metrics.timer("hook.getVideoUri");
+    /**
+     * Snaps discarded in Ask mode, and the estimated bytes they would have taken up in the keepchat
+     * folder. Discarded images were never written at all; videos only as their staged copy.
+     */
+    private final Metrics.Counter stagedDiscards = Metrics.counter("staging.discards");
+    private final Metrics.Counter stagedBytesDiscarded = Metrics.counter("staging.bytesDiscarded");
+    /** Eager saves started or skipped, and how often the getter hooks found one for the snap or not */
+    private final Metrics.Counter eagerStarted = Metrics.counter("eager.started");
+    private final Metrics.Counter eagerSkipped = Metrics.counter("eager.skipped");
+    private final Metrics.Counter eagerHits = Metrics.counter("eager.hits");
+    private final Metrics.Counter eagerMisses = Metrics.counter("eager.misses");
+
+    SnapSaver(SnapAccessors accessors, SnapRegistry registry, SaveEngine engine, SaveIndex index,
+              AtomicCommitter committer, MediaCopier mediaCopier, PathPlanner pathPlanner, ImageEncoder imageEncoder) {
+        this.accessors = accessors;
+        this.registry = registry;
+        this.engine = engine;
+        this.index = index;
+        this.committer = committer;
+        this.mediaCopier = mediaCopier;
+        this.pathPlanner = pathPlanner;
+        this.imageEncoder = imageEncoder;
+    }
+
+    void setPathPlanner(PathPlanner pathPlanner) {
+        this.pathPlanner = pathPlanner;
+    }
+
+    void setImageEncoder(ImageEncoder imageEncoder) {
+        this.imageEncoder = imageEncoder;
+    }
+
+    /**
+     * Called from the getImageBitmap() hook with the Bitmap Snapchat is about to show.
+     *
+     * @param mode The image saving mode, {@link Config#SAVE_AUTO} or {@link Config#SAVE_ASK}
+     * @param eager Whether the snap was normally saved eagerly when it was downloaded
+     * @return The registry entry of the snap, or {@code null} if the image couldn't be captured
+     */
+    SnapRegistry.Entry imageLoaded(Object snap, Bitmap myImage, int mode, boolean eager) throws Exception {
+        long hookStart = imageHookTimer.start();
+        try {
+            // Nothing is captured, let alone copied, for snaps whose save is known already
+            SnapRegistry.Entry known = attachKnown(snap, eager);
+            if (known != null)
+                return known;
+            // Only capture what's needed for saving, the rest is done by the save engine
+            String sender = accessors.getSender(snap);
+            long timestamp = accessors.getTimestamp(snap);
+            String snapId = accessors.getId(snap);
+            SnapRegistry.Entry saved = attachSaved(snap, true, sender, timestamp, snapId, false);
+            if (saved != null)
+                return saved;
+            // If Snapchat still holds the decrypted image, it can be saved without re-encoding
+            byte[] raw = accessors.getRawBytes(snap);
+            ImageEncoder encoder = imageEncoder;
+            // Otherwise the job gets its own copy, Snapchat may recycle its Bitmap any time
+            Bitmap image = null;
+            if (encoder.needsBitmap(raw)) {
+                image = ownedCopy(myImage);
+                if (image == null) {
+                    Logger.e("Could not copy the image for saving.");
+                    return null;
+                }
+            }
+            SaveEngine.Job job = imageJob(encoder, sender, timestamp, snapId, raw, image);
+            // When asking, nothing is written until the user chose to save
+            SnapRegistry.Entry entry;
+            if (mode == SAVE_ASK)
+                entry = new SnapRegistry.Entry(true, stagedImage(job, encoder, raw, image));
+            else
+                entry = new SnapRegistry.Entry(true, engine.submit(job));
+            registry.register(snap, entry);
+            return entry;
+        } finally {
+            imageHookTimer.stop(hookStart);
+        }
+    }
+
+    /**
+     * Called from the getVideoUri() hook with the path of the video Snapchat is about to play.
+     *
+     * @param mode The video saving mode, {@link Config#SAVE_AUTO} or {@link Config#SAVE_ASK}
+     * @param eager Whether the snap was normally saved eagerly when it was downloaded
+     * @return The registry entry of the snap
+     */
+    SnapRegistry.Entry videoLoaded(Object snap, String videoUri, int mode, boolean eager) throws Exception {
+        long hookStart = videoHookTimer.start();
+        try {
+            SnapRegistry.Entry known = attachKnown(snap, eager);
+            if (known != null)
+                return known;
+            // Only capture what's needed for saving, the rest is done by the save engine
+            String sender = accessors.getSender(snap);
+            long timestamp = accessors.getTimestamp(snap);
+            String snapId = accessors.getId(snap);
+            SnapRegistry.Entry saved = attachSaved(snap, false, sender, timestamp, snapId, false);
+            if (saved != null)
+                return saved;
+            // When asking, the video is copied to a staging file right away, as Snapchat may
+            // delete its own before the user decides. It only ends up in the keepchat folder if
+            // the user chose to save.
+            SnapRegistry.Entry entry;
+            if (mode == SAVE_ASK)
+                entry = new SnapRegistry.Entry(false, new StagedVideo(sender, timestamp, snapId, videoUri));
+            else
+                entry = new SnapRegistry.Entry(false, engine.submit(videoJob(sender, timestamp, snapId, new File(videoUri), false)));
+            registry.register(snap, entry);
+            return entry;
+        } finally {
+            videoHookTimer.stop(hookStart);
+        }
+    }
+
+    /**
+     * Called from the setIsLoaded() hook once a snap has been downloaded, to save it eagerly.
+     * Only what Snapchat already holds is saved this early: the video path and the decrypted
+     * image bytes, fetched here on Snapchat's own thread. Images that would need a Bitmap are
+     * left to the getImageBitmap() hook, as decoding them is Snapchat's business; so are snaps
+     * whose data isn't there yet.
+     *
+     * @param imageMode The image saving mode, eager saves only happen for {@link Config#SAVE_AUTO}
+     * @param videoMode The video saving mode, likewise
+     * @return The registry entry of the eager save, or {@code null} if none was started
+     */
+    SnapRegistry.Entry snapLoaded(Object snap, int imageMode, int videoMode) throws Exception {
+        if (registry.get(snap) != null)
+            return null;
+        boolean isVideo = accessors.isVideo(snap);
+        if ((isVideo ? videoMode : imageMode) != SAVE_AUTO)
+            return null;
+        String sender = accessors.getSender(snap);
+        long timestamp = accessors.getTimestamp(snap);
+        String snapId = accessors.getId(snap);
+        if (attachSaved(snap, !isVideo, sender, timestamp, snapId, true) != null)
+            return null;
+        SaveEngine.Job job;
+        if (isVideo) {
+            // The original method, so that our getVideoUri() hook doesn't fire
+            String videoUri = (String) XposedBridge.invokeOriginalMethod(accessors.getVideoUri, snap, null);
+            job = videoUri != null ? videoJob(sender, timestamp, snapId, new File(videoUri), false) : null;
+        } else {
+            ImageEncoder encoder = imageEncoder;
+            byte[] raw = accessors.getRawBytes(snap);
+            job = !encoder.needsBitmap(raw) ? imageJob(encoder, sender, timestamp, snapId, raw, null) : null;
+        }
+        if (job == null) {
+            eagerSkipped.inc();
+            return null;
+        }
+        SnapRegistry.Entry entry = new SnapRegistry.Entry(!isVideo, engine.submit(job), true);
+        registry.register(snap, entry);
+        eagerStarted.inc();
+        return entry;
+    }
+
+    /** Discards the staged save of the entry, i.e. frees the staged image or deletes the staged video. */
+    void discard(SnapRegistry.Entry entry) {
+        SnapRegistry.StagedSave staged = entry.takeStaged();
+        if (staged == null)
+            return;
+        long bytes = staged.estimatedBytes();
+        staged.discard();
+        stagedDiscards.inc();
+        stagedBytesDiscarded.add(bytes);
+        if (Logger.isLoggable(Logger.DEBUG))
+            Logger.d("Discarded staged " + (entry.isImage ? "image" : "video") + " of about " + bytes
+                    + " bytes (" + stagedBytesDiscarded.get() + " bytes in total)");
+    }
+
+    /**
+     * @param raw The decrypted image bytes, may be {@code null}
+     * @param image A copy of the image owned by the job, which recycles it when done. May only be
+     *              {@code null} if it isn't needed to save the raw bytes.
+     * @return The job saving the image, unless it was saved already
+     */
+    SaveEngine.Job imageJob(final ImageEncoder imageEncoder, final String sender, final long timestamp,
+                            final String snapId, final byte[] raw, final Bitmap image) {
+        final PathPlanner pathPlanner = this.pathPlanner;
+        return new SaveEngine.Job() {
+            @Override
+            public String save() throws Exception {
+                try {
+                    return saveImage();
+                } finally {
+                    if (image != null)
+                        image.recycle();
+                }
+            }
+
+            private String saveImage() throws Exception {
+                // Check if the image was already saved, otherwise reserve its file
+                SaveIndex.Reservation reservation = index.reserve(sender, timestamp, "image", snapId,
+                        pathPlanner.plan(sender, timestamp, imageEncoder.getSuffix(raw)));
+                if (reservation.saved != null) {
+                    Logger.d("Image already saved, doing nothing.");
+                    return reservation.saved.path;
+                }
+                File file = reservation.file;
+                try {
+                    //write the original bytes or encode the bitmap, depending on the preferences,
+                    //to a temp file which is only moved into place once it's completely on disk
+                    File temp = committer.tempFileFor(file);
+                    long hash;
+                    try {
+                        imageEncoder.encode(image, raw, temp);
+                        hash = SaveIndex.hashFile(temp);
+                    } catch (Exception e) {
+                        committer.abort(temp);
+                        throw e;
+                    }
+                    // The same image may have been sent again as another snap
+                    SaveIndex.Entry same = index.findContent(hash, temp.length());
+                    if (same != null) {
+                        committer.abort(temp);
+                        Logger.d("Same image already saved to ", same.path);
+                        return same.path;
+                    }
+                    committer.commit(temp, file);
+                    index.add(reservation, hash);
+                } finally {
+                    index.release(reservation);
+                }
+                // The path the index has, the MediaStore gets it from the scan
+                String path = file.getPath();
+                Logger.d("Saved image to ", path);
+                return path;
+            }
+        };
+    }
+
+    /**
+     * @param source The video file
+     * @param owned Whether the source is a staged copy of our own, which is moved into place and
+     *              otherwise removed, rather than Snapchat's file
+     * @return The job copying the video, unless it was saved already
+     */
+    SaveEngine.Job videoJob(final String sender, final long timestamp, final String snapId,
+                            final File source, final boolean owned) {
+        final PathPlanner pathPlanner = this.pathPlanner;
+        return new SaveEngine.Job() {
+            @Override
+            public String save() throws Exception {
+                try {
+                    return saveVideo();
+                } finally {
+                    if (owned)
+                        committer.abort(source);
+                }
+            }
+
+            private String saveVideo() throws Exception {
+                // Check if the video was already saved, e.g. when it is replayed, otherwise
+                // reserve its file
+                SaveIndex.Reservation reservation = index.reserve(sender, timestamp, "video", snapId,
+                        pathPlanner.plan(sender, timestamp, "mp4"));
+                if (reservation.saved != null) {
+                    Logger.d("Video already saved, doing nothing.");
+                    return reservation.saved.path;
+                }
+                File file = reservation.file;
+                try {
+                    //copy the video over, using the cheapest way the file systems allow,
+                    //to a temp file which is only moved into place once it's completely on disk
+                    File temp = committer.tempFileFor(file);
+                    long hash;
+                    try {
+                        mediaCopier.copy(source, temp, owned);
+                        hash = SaveIndex.hashFile(temp);
+                    } catch (Exception e) {
+                        committer.abort(temp);
+                        throw e;
+                    }
+                    SaveIndex.Entry same = index.findContent(hash, temp.length());
+                    if (same != null) {
+                        committer.abort(temp);
+                        Logger.d("Same video already saved to ", same.path);
+                        return same.path;
+                    }
+                    committer.commit(temp, file);
+                    index.add(reservation, hash);
+                } finally {
+                    index.release(reservation);
+                }
+                String path = file.getPath();
+                Logger.d("Saved video to ", path);
+                return path;
+            }
+        };
+    }
+
+    /** @return A copy of the image for a save job to own, or {@code null} if there's no memory for it */
+    private static Bitmap ownedCopy(Bitmap image) {
+        Bitmap.Config bitmapConfig = image.getConfig();
+        return image.copy(bitmapConfig != null ? bitmapConfig : Bitmap.Config.ARGB_8888, false);
+    }
+
+    /** @return The staged save of an image, the job owns the given copy of the image */
+    private SnapRegistry.StagedSave stagedImage(final SaveEngine.Job job, final ImageEncoder encoder,
+                                                final byte[] raw, final Bitmap image) {
+        return new SnapRegistry.StagedSave() {
+            @Override
+            public SaveHandle start() {
+                return engine.submit(job);
+            }
+
+            @Override
+            public void discard() {
+                if (image != null)
+                    image.recycle();
+            }
+
+            @Override
+            public long estimatedBytes() {
+                return encoder.estimateSize(image, raw);
+            }
+        };
+    }
+
+    /**
+     * The staged save of a video. The video is copied to a staging file in the temp folder right
+     * away, which the save moves into the keepchat folder, and discarding deletes. Both may come
+     * before the copy has finished; all state changes happen on the main thread.
+     */
+    private final class StagedVideo implements SnapRegistry.StagedSave {
+        private final String sender;
+        private final long timestamp;
+        private final String snapId;
+        private final String videoUri;
+        /** The staged copy, once the copy has finished; {@code null} if it failed */
+        private File staged;
+        private boolean copied;
+        private boolean discarded;
+        /** The handle returned by {@link #start()} before the copy finished */
+        private SaveHandle pending;
+
+        StagedVideo(String sender, long timestamp, String snapId, final String videoUri) {
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.snapId = snapId;
+            this.videoUri = videoUri;
+            engine.submit(new SaveEngine.Job() {
+                @Override
+                public String save() throws Exception {
+                    File source = new File(videoUri);
+                    File temp = committer.tempFileFor(source);
+                    mediaCopier.copy(source, temp, false);
+                    return temp.getPath();
+                }
+            }).whenDone(new SaveHandle.Callback() {
+                @Override
+                public void onSaved(String path) {
+                    onCopied(path != null ? new File(path) : null);
+                }
+            });
+        }
+
+        private synchronized void onCopied(File copy) {
+            staged = copy;
+            copied = true;
+            if (discarded)
+                deleteStaged();
+            else if (pending != null)
+                commit(pending);
+        }
+
+        @Override
+        public synchronized SaveHandle start() {
+            SaveHandle handle = new SaveHandle();
+            if (copied)
+                commit(handle);
+            else
+                pending = handle;
+            return handle;
+        }
+
+        @Override
+        public synchronized void discard() {
+            discarded = true;
+            if (copied)
+                deleteStaged();
+        }
+
+        @Override
+        public synchronized long estimatedBytes() {
+            // Snapchat's own file while the copy is still running
+            return staged != null ? staged.length() : new File(videoUri).length();
+        }
+
+        /** Moves the staged copy into the keepchat folder and completes the handle with the result. */
+        private void commit(final SaveHandle handle) {
+            if (staged == null) {
+                handle.complete(null);
+                return;
+            }
+            engine.submit(videoJob(sender, timestamp, snapId, staged, true)).whenDone(new SaveHandle.Callback() {
+                @Override
+                public void onSaved(String path) {
+                    handle.complete(path);
+                }
+            });
+        }
+
+        private void deleteStaged() {
+            if (staged == null)
+                return;
+            final File file = staged;
+            engine.submit(new SaveEngine.Job() {
+                @Override
+                public String save() {
+                    committer.abort(file);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Attaches the entry the snap has already, if any, to the current view frame. Snapchat calls
+     * the getters every time the snap is shown, and when saving eagerly, the save has normally
+     * started when the snap was downloaded.
+     *
+     * @param eager Whether the snap was normally saved eagerly, for the eager.* metrics
+     * @return The entry of the snap, {@code null} if it has none
+     */
+    private SnapRegistry.Entry attachKnown(Object snap, boolean eager) {
+        SnapRegistry.Entry entry = registry.get(snap);
+        if (eager) {
+            if (entry != null && entry.prefetched)
+                eagerHits.inc();
+            else
+                eagerMisses.inc();
+        }
+        if (entry != null)
+            registry.register(snap, entry);
+        return entry;
+    }
+
+    /**
+     * Registers a finished save for a snap the index knows to be saved, e.g. one that is replayed
+     * after Snapchat was restarted, so that no job has to find out.
+     *
+     * @return The entry of the snap, {@code null} if it isn't known to be saved
+     */
+    private SnapRegistry.Entry attachSaved(Object snap, boolean isImage, String sender, long timestamp,
+                                           String snapId, boolean prefetched) {
+        SaveIndex.Entry saved = index.peek(sender, timestamp, isImage ? "image" : "video", snapId);
+        if (saved == null)
+            return null;
+        SaveHandle handle = new SaveHandle();
+        handle.complete(saved.path);
+        SnapRegistry.Entry entry = new SnapRegistry.Entry(isImage, handle, prefetched);
+        registry.register(snap, entry);
+        return entry;
+    }
+}
@@ -0,0 +1,193 @@
+package com.sturmen.xposed.keepchat;
+
+/**
+ * Copyright (C) 2013 Nick Tinsley (00sturm@gmail.com), Sebastian Stammler (stammler@cantab.net)
+ * <p/>
+ * This file is part of Keepchat.
+ * <p/>
+ * Keepchat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Keepchat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * a gazillion times.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.provider.MediaStore;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Two-level cache of the thumbnails shown in the {@link BrowserActivity}.
+ * <p>
+ * Thumbnails live in an LRU memory cache using an eighth of the heap and in a disk cache in the
+ * {@link #DIR_NAME} folder inside the keepchat folder. The disk cache is filled as the snaps are
+ * saved: inside Snapchat, {@link #prepare(String)} creates the thumbnail of every saved snap after
+ * the save has been reported, so the browser usually only has to read them. A thumbnail missing
+ * from both caches, e.g. of a snap saved before, is created by {@link #load(SaveIndex.Entry)}:
+ * images are decoded with an {@code inSampleSize} close to the thumbnail size, videos go through
+ * {@link ThumbnailUtils}. The {@link RetentionManager} removes the thumbnails of evicted snaps.
+ * <p>
+ * {@link #load(SaveIndex.Entry)} and {@link #prepare(String)} do I/O and must not be called on
+ * the UI thread.
+ */
+final class ThumbnailCache {
+    static final String DIR_NAME = ".thumbnails";
+    private static final int THUMBNAIL_DP = 100;
+
+    private final File diskDir;
+    private final int sizePx;
+    private final LruCache<String, Bitmap> memory;
+    private final Metrics.Timer decodeTimer = Metrics.timer("browser.decode");
+
+    /** @param keepchatDir The keepchat folder, which holds the disk cache */
+    ThumbnailCache(File keepchatDir) {
+        this.diskDir = new File(keepchatDir, DIR_NAME);
+        this.sizePx = sizePx();
+        int maxKilobytes = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        memory = new LruCache<String, Bitmap>(maxKilobytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+            }
+        };
+    }
+
+    /**
+     * @return The edge length of the thumbnails in pixels. Snapchat and the browser must agree on
+     *         it, so it only depends on the display.
+     */
+    static int sizePx() {
+        return (int) (THUMBNAIL_DP * Resources.getSystem().getDisplayMetrics().density);
+    }
+
+    /** @return The thumbnail if it is in the memory cache, {@code null} otherwise. Cheap. */
+    Bitmap getFromMemory(SaveIndex.Entry entry) {
+        return memory.get(entry.path);
+    }
+
+    /** @return The thumbnail of the snap, or {@code null} if it can't be decoded. */
+    Bitmap load(SaveIndex.Entry entry) {
+        Bitmap thumbnail = memory.get(entry.path);
+        if (thumbnail != null)
+            return thumbnail;
+        File cached = diskFile(entry.path, entry.size);
+        if (cached.exists())
+            thumbnail = BitmapFactory.decodeFile(cached.getPath());
+        if (thumbnail == null) {
+            thumbnail = create(entry.path, entry.type.equals("video"));
+            if (thumbnail == null)
+                return null;
+            store(thumbnail, cached);
+        }
+        memory.put(entry.path, thumbnail);
+        return thumbnail;
+    }
+
+    /** Creates the disk cached thumbnail of a newly saved snap, unless it exists already. */
+    void prepare(String path) {
+        File cached = diskFile(path, new File(path).length());
+        if (cached.exists())
+            return;
+        Bitmap thumbnail = create(path, path.endsWith(".mp4"));
+        if (thumbnail == null)
+            return;
+        store(thumbnail, cached);
+        thumbnail.recycle();
+    }
+
+    /** Deletes the disk cached thumbnail of a snap that was removed. */
+    void remove(SaveIndex.Entry entry) {
+        File cached = diskFile(entry.path, entry.size);
+        if (cached.exists() && !cached.delete())
+            Logger.e("Could not delete thumbnail " + cached);
+    }
+
+    void clearMemory() {
+        memory.evictAll();
+    }
+
+    private Bitmap create(String path, boolean isVideo) {
+        long start = decodeTimer.start();
+        Bitmap thumbnail = isVideo ? videoThumbnail(path) : imageThumbnail(path);
+        decodeTimer.stop(start);
+        return thumbnail;
+    }
+
+    private Bitmap imageThumbnail(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= sizePx && options.outHeight / (sampleSize * 2) >= sizePx)
+            sampleSize *= 2;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = BitmapFactory.decodeFile(path, options);
+        if (decoded == null)
+            return null;
+        return crop(decoded);
+    }
+
+    private Bitmap videoThumbnail(String path) {
+        Bitmap frame = ThumbnailUtils.createVideoThumbnail(path, MediaStore.Video.Thumbnails.MINI_KIND);
+        return frame != null ? crop(frame) : null;
+    }
+
+    /** Scales and crops to the square thumbnail size, recycling the source. */
+    private Bitmap crop(Bitmap source) {
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(source, sizePx, sizePx);
+        if (thumbnail != source)
+            source.recycle();
+        return thumbnail;
+    }
+
+    private void store(Bitmap thumbnail, File file) {
+        if (!diskDir.isDirectory()) {
+            if (!diskDir.mkdirs())
+                return;
+            // Keep the thumbnails out of the gallery
+            try {
+                new File(diskDir, ".nomedia").createNewFile();
+            } catch (IOException e) {
+                // The gallery shows them then, but they're still thumbnails
+            }
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, 80, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Not cached then, it'll be decoded again next time
+            file.delete();
+        }
+    }
+
+    /**
+     * The name changes if the snap at that path is replaced by a different file. It only depends on
+     * the snap's folder and file name, as Snapchat and the browser may see the keepchat folder
+     * under different paths.
+     */
+    private File diskFile(String path, long size) {
+        File file = new File(path);
+        String key = file.getParentFile().getName() + "/" + file.getName();
+        return new File(diskDir, Integer.toHexString(key.hashCode()) + "_" + size + "_" + sizePx + ".jpg");
+    }
+}